@@ -1,5 +1,9 @@
 package org.agoncal.fascicle.jpa.advanced;
 
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.descriptors.PersistenceObjectAttributeAccessor;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -23,4 +27,31 @@ public class CustomerTest extends AbstractPersistentTest {
     tx.commit();
     Assertions.assertNotNull(customer.getId(), "Id should not be null");
   }
+
+  @Test
+  public void shouldAccessFieldsThroughWovenMethods() throws Exception {
+    ClassDescriptor descriptor = JpaHelper.getServerSession(emf).getDescriptor(Customer.class);
+    for (DatabaseMapping mapping : descriptor.getMappings())
+      Assertions.assertTrue(mapping.getAttributeAccessor() instanceof PersistenceObjectAttributeAccessor, mapping.getAttributeName());
+    // Changes are recorded by the woven setters instead of compared to a snapshot
+    Assertions.assertTrue(descriptor.getObjectChangePolicy().isAttributeChangeTrackingPolicy());
+
+    Customer customer = new Customer("John", "Smith", "jsmith@gmail.com", "1234565");
+    tx.begin();
+    em.persist(customer);
+    tx.commit();
+    Customer found = reload(customer.getId());
+    Assertions.assertEquals("1234565", found.getPhoneNumber());
+
+    tx.begin();
+    found.setPhoneNumber("7654321");
+    tx.commit();
+    Assertions.assertEquals("7654321", reload(customer.getId()).getPhoneNumber());
+  }
+
+  private Customer reload(Long id) {
+    em.clear();
+    emf.getCache().evictAll();
+    return em.find(Customer.class, id);
+  }
 }
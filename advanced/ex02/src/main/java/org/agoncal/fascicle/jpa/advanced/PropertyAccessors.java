@@ -0,0 +1,133 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.exceptions.DescriptorException;
+import org.eclipse.persistence.internal.descriptors.MethodAttributeAccessor;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.sessions.Session;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reads and writes the properties of entities with property access through
+ * accessors generated when the unit is deployed, instead of
+ * <code>Method.invoke</code>. Entities with field access are taken care of
+ * by static weaving, which generates <code>_persistence_get</code> and
+ * <code>_persistence_set</code> methods on the entities at build time.
+ * <p>
+ * Registered in <code>persistence.xml</code> as
+ * <code>eclipselink.session.customizer</code>. Getters and setters that are
+ * not public keep being invoked through reflection.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class PropertyAccessors implements SessionCustomizer {
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  @Override
+  public void customize(Session session) {
+    for (ClassDescriptor descriptor : session.getDescriptors().values())
+      for (DatabaseMapping mapping : descriptor.getMappings())
+        if (mapping.getAttributeAccessor().getClass() == MethodAttributeAccessor.class)
+          mapping.setAttributeAccessor(new Accessor((MethodAttributeAccessor) mapping.getAttributeAccessor()));
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  /**
+   * Calls the getter and the setter of a property through lambdas bound to
+   * them, once EclipseLink has looked the methods up.
+   */
+  public static class Accessor extends MethodAttributeAccessor {
+
+    private Function<Object, Object> getter;
+    private BiConsumer<Object, Object> setter;
+
+    Accessor(MethodAttributeAccessor accessor) {
+      setAttributeName(accessor.getAttributeName());
+      setGetMethodName(accessor.getGetMethodName());
+      setSetMethodName(accessor.getSetMethodName());
+    }
+
+    @Override
+    public void initializeAttributes(Class theJavaClass) throws DescriptorException {
+      super.initializeAttributes(theJavaClass);
+      getter = getter(getGetMethod());
+      setter = setter(getSetMethod());
+    }
+
+    @Override
+    public Object getAttributeValueFromObject(Object anObject) throws DescriptorException {
+      return getter == null ? super.getAttributeValueFromObject(anObject) : getter.apply(anObject);
+    }
+
+    @Override
+    public void setAttributeValueInObject(Object domainObject, Object attributeValue) throws DescriptorException {
+      // A null cannot be unboxed into a primitive, reflection reports it
+      if (setter == null || (attributeValue == null && getSetMethodParameterType().isPrimitive()))
+        super.setAttributeValueInObject(domainObject, attributeValue);
+      else
+        setter.accept(domainObject, attributeValue);
+    }
+
+    public boolean isGenerated() {
+      return getter != null && setter != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> getter(Method method) {
+      if (method == null || !isPublic(method))
+        return null;
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle = lookup.unreflect(method);
+        CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+          MethodType.methodType(Function.class),
+          MethodType.methodType(Object.class, Object.class),
+          handle, handle.type().wrap());
+        return (Function<Object, Object>) site.getTarget().invokeExact();
+      } catch (Throwable e) {
+        // Left to reflection
+        return null;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> setter(Method method) {
+      if (method == null || !isPublic(method))
+        return null;
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle = lookup.unreflect(method);
+        CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+          MethodType.methodType(BiConsumer.class),
+          MethodType.methodType(void.class, Object.class, Object.class),
+          handle, handle.type().wrap().changeReturnType(void.class));
+        return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+      } catch (Throwable e) {
+        // Left to reflection
+        return null;
+      }
+    }
+
+    private static boolean isPublic(Method method) {
+      return Modifier.isPublic(method.getModifiers()) && Modifier.isPublic(method.getDeclaringClass().getModifiers());
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.internal.helper.DatabaseField;
+import org.eclipse.persistence.internal.queries.ContainerPolicy;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.CollectionMapping;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.foundation.AbstractDirectMapping;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoField;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.Temporal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Merges detached entity graphs, such as a {@link PurchaseOrder} and its
+ * {@link OrderLine}s read from JSON, into an entity manager.
+ * <p>
+ * Unlike {@link EntityManager#merge(Object)}, that reads each entity of the
+ * graph with its own <code>SELECT</code>, the entities are read with one
+ * <code>SELECT ... WHERE ID IN (...)</code> per entity type, their
+ * relationships being batch fetched, and only the attributes that differ are
+ * copied to the managed entities, so that the flush updates the changed
+ * columns only. Attributes are compared as the database stores them: converted
+ * to their column value, date times rounded to the fractional seconds of their
+ * column.
+ * <p>
+ * Every entity reachable from the detached ones is merged, whatever the
+ * cascade of the relationship. An entity without id is persisted, an entity
+ * whose id does not exist raises an {@link EntityNotFoundException}.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class GraphMerger {
+
+  private static final int CHUNK_SIZE = 500;
+  // Fractional digits of the date time columns, kept by the server session
+  private static final String FRACTIONAL_DIGITS = GraphMerger.class.getName() + ".fractionalDigits";
+
+  private final EntityManager em;
+  private final AbstractSession session;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public GraphMerger(EntityManager em) {
+    this.em = em;
+    this.session = (AbstractSession) JpaHelper.getEntityManager(em).getServerSession();
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * @return the managed entity
+   */
+  public <T> T merge(T detached) {
+    return mergeAll(Collections.singletonList(detached)).get(0);
+  }
+
+  /**
+   * @return the managed entities, in the order of the detached ones
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> mergeAll(List<T> detached) {
+    // Detached entities of each type, by id, types in the order they are reached
+    Map<ClassDescriptor, Map<Object, List<Object>>> existing = new LinkedHashMap<>();
+    List<Object> created = new ArrayList<>();
+    Map<Object, Object> visited = new IdentityHashMap<>();
+    for (Object entity : detached)
+      collect(entity, existing, created, visited);
+
+    Map<Object, Object> managed = new IdentityHashMap<>();
+    Map<Object, Object> fetched = new HashMap<>();
+    existing.forEach((descriptor, byId) -> load(descriptor, byId, managed, fetched));
+    for (Object entity : created)
+      managed.put(entity, descriptorOf(entity).getObjectBuilder().buildNewInstance());
+
+    for (Map.Entry<Object, Object> entry : managed.entrySet())
+      copy(descriptorOf(entry.getKey()), entry.getKey(), entry.getValue(), managed);
+    for (Object entity : created)
+      em.persist(managed.get(entity));
+
+    List<T> merged = new ArrayList<>();
+    for (T entity : detached)
+      merged.add((T) managed.get(entity));
+    return merged;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private void collect(Object entity, Map<ClassDescriptor, Map<Object, List<Object>>> existing, List<Object> created, Map<Object, Object> visited) {
+    if (entity == null || visited.put(entity, entity) != null)
+      return;
+    ClassDescriptor descriptor = descriptorOf(entity);
+    Object id = descriptor.getObjectBuilder().extractPrimaryKeyFromObject(entity, session);
+    if (id == null)
+      created.add(entity);
+    else
+      existing.computeIfAbsent(descriptor, key -> new LinkedHashMap<>()).computeIfAbsent(id, key -> new ArrayList<>()).add(entity);
+    for (DatabaseMapping mapping : descriptor.getMappings())
+      for (Object referenced : referencedBy(mapping, entity))
+        collect(referenced, existing, created, visited);
+  }
+
+  /**
+   * Reads the entities that were not fetched with the previous types, by
+   * chunks of ids, and touches their relationships so that the entities they
+   * reference are batch fetched rather than read by the next types.
+   */
+  private void load(ClassDescriptor descriptor, Map<Object, List<Object>> byId, Map<Object, Object> managed, Map<Object, Object> fetched) {
+    Map<Object, Object> found = new HashMap<>();
+    List<Object> ids = new ArrayList<>();
+    for (Object id : byId.keySet()) {
+      Object entity = fetched.get(Arrays.asList(descriptor, id));
+      if (entity == null)
+        ids.add(id);
+      else
+        found.put(id, entity);
+    }
+
+    String id = descriptor.getObjectBuilder().getPrimaryKeyMappings().get(0).getAttributeName();
+    for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+      TypedQuery<?> query = em.createQuery("SELECT e FROM " + descriptor.getAlias() + " e WHERE e." + id + " IN :ids", descriptor.getJavaClass())
+        .setParameter("ids", ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size())))
+        .setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+      for (DatabaseMapping mapping : descriptor.getMappings())
+        if (mapping.isForeignReferenceMapping())
+          query.setHint(QueryHints.BATCH, "e." + mapping.getAttributeName());
+      for (Object entity : query.getResultList())
+        found.put(descriptor.getObjectBuilder().extractPrimaryKeyFromObject(entity, session), entity);
+    }
+
+    for (Map.Entry<Object, List<Object>> entry : byId.entrySet()) {
+      Object entity = found.get(entry.getKey());
+      if (entity == null)
+        throw new EntityNotFoundException("No " + descriptor.getAlias() + " with id " + entry.getKey());
+      for (Object detached : entry.getValue())
+        managed.put(detached, entity);
+    }
+    for (Object entity : found.values())
+      for (DatabaseMapping mapping : descriptor.getMappings())
+        for (Object referenced : referencedBy(mapping, entity)) {
+          ClassDescriptor target = descriptorOf(referenced);
+          fetched.put(Arrays.asList(target, target.getObjectBuilder().extractPrimaryKeyFromObject(referenced, session)), referenced);
+        }
+  }
+
+  /**
+   * Copies the attributes of the detached entity, or embeddable, that differ
+   * from the managed one.
+   */
+  @SuppressWarnings("unchecked")
+  private void copy(ClassDescriptor descriptor, Object from, Object to, Map<Object, Object> managed) {
+    for (DatabaseMapping mapping : descriptor.getMappings()) {
+      if (mapping.isPrimaryKeyMapping() || mapping.isReadOnly())
+        continue;
+      Object value = mapping.getRealAttributeValueFromObject(from, session);
+      Object current = mapping.getRealAttributeValueFromObject(to, session);
+      if (mapping.isAggregateObjectMapping()) {
+        ClassDescriptor embeddable = mapping.getReferenceDescriptor();
+        if (value == null && current != null)
+          mapping.setRealAttributeValueInObject(to, null);
+        else if (value != null && current == null) {
+          current = embeddable.getObjectBuilder().buildNewInstance();
+          copy(embeddable, value, current, managed);
+          mapping.setRealAttributeValueInObject(to, current);
+        } else if (value != null)
+          copy(embeddable, value, current, managed);
+      } else if (mapping.isCollectionMapping()) {
+        List<Object> wanted = new ArrayList<>();
+        for (Object element : referencedBy(mapping, from))
+          wanted.add(managed.get(element));
+        List<Object> present = referencedBy(mapping, to);
+        if (!sameElements(wanted, present)) {
+          ContainerPolicy policy = ((CollectionMapping) mapping).getContainerPolicy();
+          if (current instanceof Collection) {
+            ((Collection<Object>) current).clear();
+            ((Collection<Object>) current).addAll(wanted);
+          } else {
+            Object container = policy.containerInstance(wanted.size());
+            wanted.forEach(element -> policy.addInto(element, container, session));
+            mapping.setRealAttributeValueInObject(to, container);
+          }
+        }
+      } else if (mapping.isObjectReferenceMapping()) {
+        Object wanted = value == null ? null : managed.get(value);
+        if (wanted != current)
+          mapping.setRealAttributeValueInObject(to, wanted);
+      } else if (mapping.isDirectToFieldMapping()) {
+        if (!Objects.deepEquals(storedValue((AbstractDirectMapping) mapping, value), storedValue((AbstractDirectMapping) mapping, current)))
+          mapping.setRealAttributeValueInObject(to, value);
+      } else
+        throw new IllegalArgumentException("Cannot merge " + descriptor.getAlias() + "." + mapping.getAttributeName());
+    }
+  }
+
+  /**
+   * @return the value of the column, as the database stores the attribute
+   * value
+   */
+  private Object storedValue(AbstractDirectMapping mapping, Object value) {
+    Object field = mapping.getFieldValue(value, session);
+    if (field instanceof Timestamp)
+      return Timestamp.valueOf((LocalDateTime) round(((Timestamp) field).toLocalDateTime(), mapping.getField()));
+    if (field instanceof Temporal && ((Temporal) field).isSupported(ChronoField.NANO_OF_SECOND))
+      return round((Temporal) field, mapping.getField());
+    return field;
+  }
+
+  private Temporal round(Temporal value, DatabaseField field) {
+    int nanos = value.get(ChronoField.NANO_OF_SECOND);
+    long unit = (long) Math.pow(10, 9 - Math.min(fractionalDigits(field), 9));
+    if (nanos % unit == 0)
+      return value;
+    return value.with(ChronoField.NANO_OF_SECOND, 0).plus((nanos + unit / 2) / unit * unit, ChronoUnit.NANOS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private int fractionalDigits(DatabaseField field) {
+    ConcurrentMap<String, Integer> digits;
+    synchronized (session) {
+      digits = (ConcurrentMap<String, Integer>) session.getProperty(FRACTIONAL_DIGITS);
+      if (digits == null) {
+        digits = new ConcurrentHashMap<>();
+        session.setProperty(FRACTIONAL_DIGITS, digits);
+      }
+    }
+    return digits.computeIfAbsent(field.getQualifiedName(), name -> readFractionalDigits(field));
+  }
+
+  /**
+   * Reads the fractional digits of a column from the database metadata, with
+   * a connection of the read pool as the entity manager may not have one.
+   */
+  private int readFractionalDigits(DatabaseField field) {
+    ServerSession server = (ServerSession) session;
+    Accessor accessor = server.getReadConnectionPool().acquireConnection();
+    try {
+      DatabaseMetaData metadata = accessor.getConnection().getMetaData();
+      for (String table : Arrays.asList(field.getTableName(), field.getTableName().toUpperCase()))
+        for (String column : Arrays.asList(field.getName(), field.getName().toUpperCase()))
+          try (ResultSet columns = metadata.getColumns(null, null, table, column)) {
+            if (columns.next())
+              return columns.getInt("DECIMAL_DIGITS");
+          }
+    } catch (SQLException e) {
+      throw new PersistenceException("Cannot read the metadata of " + field.getQualifiedName(), e);
+    } finally {
+      server.getReadConnectionPool().releaseConnection(accessor);
+    }
+    // Unknown column, compared to the nanosecond
+    return 9;
+  }
+
+  private List<Object> referencedBy(DatabaseMapping mapping, Object entity) {
+    if (!mapping.isForeignReferenceMapping())
+      return Collections.emptyList();
+    Object value = mapping.getRealAttributeValueFromObject(entity, session);
+    if (value == null)
+      return Collections.emptyList();
+    if (!mapping.isCollectionMapping())
+      return Collections.singletonList(value);
+    List<Object> elements = new ArrayList<>();
+    ContainerPolicy policy = ((CollectionMapping) mapping).getContainerPolicy();
+    for (Object iterator = policy.iteratorFor(value); policy.hasNext(iterator); )
+      elements.add(policy.next(iterator, session));
+    return elements;
+  }
+
+  private boolean sameElements(List<Object> wanted, List<Object> present) {
+    if (wanted.size() != present.size())
+      return false;
+    for (int i = 0; i < wanted.size(); i++)
+      if (wanted.get(i) != present.get(i))
+        return false;
+    return true;
+  }
+
+  private ClassDescriptor descriptorOf(Object entity) {
+    ClassDescriptor descriptor = session.getDescriptor(entity.getClass());
+    if (descriptor == null)
+      throw new IllegalArgumentException(entity.getClass().getName() + " is not an entity");
+    return descriptor;
+  }
+}
@@ -0,0 +1,123 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.LocalDateTime;
+
+/**
+ * An event waiting in the outbox to be published, written in the transaction
+ * of the change it describes.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+@Entity
+@Table(name = "outbox_event", indexes = @Index(name = "IX_OUTBOX_EVENT_CLAIMEDBY", columnList = "claimedBy"))
+public class OutboxEvent {
+
+  // ======================================
+  // =             Attributes             =
+  // ======================================
+
+  @Id
+  @GeneratedValue
+  private Long id;
+  @Column(nullable = false)
+  private String aggregateType;
+  @Column(nullable = false)
+  private Long aggregateId;
+  @Column(nullable = false)
+  private String type;
+  @Column(length = 4000)
+  private String payload;
+  @Column(nullable = false)
+  private LocalDateTime createdAt;
+  private String claimedBy;
+  private LocalDateTime claimedAt;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public OutboxEvent() {
+  }
+
+  public OutboxEvent(String aggregateType, Long aggregateId, String type, String payload) {
+    this.aggregateType = aggregateType;
+    this.aggregateId = aggregateId;
+    this.type = type;
+    this.payload = payload;
+    this.createdAt = LocalDateTime.now();
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public static OutboxEvent orderCreated(PurchaseOrder order) {
+    StringBuilder payload = new StringBuilder();
+    payload.append("{\"id\":").append(order.getId());
+    payload.append(",\"creationDate\":\"").append(order.getCreationDate()).append('"');
+    payload.append(",\"orderLines\":[");
+    if (order.getOrderLines() != null)
+      for (int i = 0; i < order.getOrderLines().size(); i++) {
+        OrderLine line = order.getOrderLines().get(i);
+        if (i > 0)
+          payload.append(',');
+        payload.append("{\"item\":\"").append(escape(line.getItem())).append('"');
+        payload.append(",\"unitPrice\":").append(line.getUnitPrice());
+        payload.append(",\"quantity\":").append(line.getQuantity()).append('}');
+      }
+    payload.append("]}");
+    return new OutboxEvent("PurchaseOrder", order.getId(), "PurchaseOrderCreated", payload.toString());
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private static String escape(String value) {
+    return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  // ======================================
+  // =          Getters & Setters         =
+  // ======================================
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getAggregateType() {
+    return aggregateType;
+  }
+
+  public Long getAggregateId() {
+    return aggregateId;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getPayload() {
+    return payload;
+  }
+
+  public LocalDateTime getCreatedAt() {
+    return createdAt;
+  }
+
+  public String getClaimedBy() {
+    return claimedBy;
+  }
+
+  public LocalDateTime getClaimedAt() {
+    return claimedAt;
+  }
+}
@@ -0,0 +1,68 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes an {@link OutboxEvent} for each new {@link PurchaseOrder}, in the
+ * same transaction as the order, so that the event exists if and only if the
+ * order does. The events are then published by an {@link OutboxRelay}.
+ * <p>
+ * Registered in <code>persistence.xml</code> as
+ * <code>eclipselink.session.customizer</code>.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class OutboxRecorder implements SessionCustomizer {
+
+  private static final String RECORDED = OutboxRecorder.class.getName();
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  @Override
+  public void customize(Session session) {
+    session.getEventManager().addListener(new SessionEventAdapter() {
+
+      // Changes are calculated on each flush and on commit, new objects
+      // registered here are inserted with the rest of the transaction
+      @Override
+      public void preCalculateUnitOfWorkChangeSet(SessionEvent event) {
+        record((UnitOfWorkImpl) event.getSession());
+      }
+    });
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  @SuppressWarnings("unchecked")
+  private void record(UnitOfWorkImpl uow) {
+    if (!uow.hasNewObjects())
+      return;
+    Set<Object> recorded = (Set<Object>) uow.getProperty(RECORDED);
+    if (recorded == null) {
+      recorded = Collections.newSetFromMap(new IdentityHashMap<>());
+      uow.setProperty(RECORDED, recorded);
+    }
+    List<OutboxEvent> events = new ArrayList<>();
+    for (Object object : uow.getNewObjectsCloneToOriginal().keySet())
+      if (object instanceof PurchaseOrder && recorded.add(object))
+        events.add(OutboxEvent.orderCreated((PurchaseOrder) object));
+    for (OutboxEvent outboxEvent : events)
+      uow.registerNewObjectForPersist(outboxEvent, new IdentityHashMap());
+  }
+}
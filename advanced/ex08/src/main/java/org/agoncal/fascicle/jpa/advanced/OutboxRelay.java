@@ -0,0 +1,172 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Drains the outbox in batches and publishes the events to a sink.
+ * <p>
+ * Several relays can drain the same outbox. A relay claims a batch by writing
+ * its id on the events that nobody else claimed, in one conditional update, so
+ * that events claimed by another relay are skipped rather than waited for.
+ * Once published, the events are removed from the outbox. Events left claimed
+ * by a relay that stopped can be claimed again after the claim timeout.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class OutboxRelay {
+
+  private final EntityManagerFactory emf;
+  private final OutboxSink sink;
+  private final int batchSize;
+  private final Duration claimTimeout;
+  private final String relayId = UUID.randomUUID().toString();
+
+  private final LongAdder published = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder relayingNanos = new LongAdder();
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public OutboxRelay(EntityManagerFactory emf, OutboxSink sink, int batchSize) {
+    this(emf, sink, batchSize, Duration.ofMinutes(1));
+  }
+
+  public OutboxRelay(EntityManagerFactory emf, OutboxSink sink, int batchSize, Duration claimTimeout) {
+    this.emf = emf;
+    this.sink = sink;
+    this.batchSize = batchSize;
+    this.claimTimeout = claimTimeout;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Publishes one batch of events.
+   *
+   * @return the number of events published, 0 if there was nothing left to
+   * claim
+   */
+  public int relay() {
+    long start = System.nanoTime();
+    EntityManager em = emf.createEntityManager();
+    try {
+      claim(em);
+      List<OutboxEvent> events = em.createQuery("SELECT e FROM OutboxEvent e WHERE e.claimedBy = :relay ORDER BY e.id", OutboxEvent.class)
+        .setParameter("relay", relayId)
+        .setHint(QueryHints.REFRESH, HintValues.TRUE)
+        .setMaxResults(batchSize)
+        .getResultList();
+      if (events.isEmpty())
+        return 0;
+
+      sink.publish(events);
+
+      List<Long> ids = events.stream().map(OutboxEvent::getId).collect(Collectors.toList());
+      em.getTransaction().begin();
+      em.createQuery("DELETE FROM OutboxEvent e WHERE e.id IN :ids AND e.claimedBy = :relay")
+        .setParameter("ids", ids)
+        .setParameter("relay", relayId)
+        .executeUpdate();
+      em.getTransaction().commit();
+
+      published.add(events.size());
+      batches.increment();
+      return events.size();
+    } finally {
+      if (em.getTransaction().isActive())
+        em.getTransaction().rollback();
+      em.close();
+      relayingNanos.add(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Publishes batches until the outbox has nothing left to claim.
+   *
+   * @return the number of events published
+   */
+  public int drain() {
+    int total = 0;
+    for (int count = relay(); count > 0; count = relay())
+      total += count;
+    return total;
+  }
+
+  /**
+   * @return how long the oldest event still in the outbox has been waiting,
+   * zero if the outbox is empty
+   */
+  public Duration getLag() {
+    EntityManager em = emf.createEntityManager();
+    try {
+      LocalDateTime oldest = em.createQuery("SELECT MIN(e.createdAt) FROM OutboxEvent e", LocalDateTime.class).getSingleResult();
+      return oldest == null ? Duration.ZERO : Duration.between(oldest, LocalDateTime.now());
+    } finally {
+      em.close();
+    }
+  }
+
+  public long getBacklog() {
+    EntityManager em = emf.createEntityManager();
+    try {
+      return em.createQuery("SELECT COUNT(e) FROM OutboxEvent e", Long.class).getSingleResult();
+    } finally {
+      em.close();
+    }
+  }
+
+  public long getPublished() {
+    return published.sum();
+  }
+
+  public long getBatches() {
+    return batches.sum();
+  }
+
+  /**
+   * @return events published per second spent relaying
+   */
+  public double getThroughput() {
+    long nanos = relayingNanos.sum();
+    return nanos == 0 ? 0 : getPublished() * 1_000_000_000d / nanos;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private void claim(EntityManager em) {
+    LocalDateTime now = LocalDateTime.now();
+    LocalDateTime expired = now.minus(claimTimeout);
+    em.getTransaction().begin();
+    List<Long> candidates = em.createQuery("SELECT e.id FROM OutboxEvent e WHERE e.claimedBy IS NULL OR e.claimedAt < :expired ORDER BY e.id", Long.class)
+      .setParameter("expired", expired)
+      .setMaxResults(batchSize)
+      .getResultList();
+    // Candidates claimed by another relay in the meantime no longer match
+    if (!candidates.isEmpty())
+      em.createQuery("UPDATE OutboxEvent e SET e.claimedBy = :relay, e.claimedAt = :now WHERE e.id IN :ids AND (e.claimedBy IS NULL OR e.claimedAt < :expired)")
+        .setParameter("relay", relayId)
+        .setParameter("now", now)
+        .setParameter("ids", candidates)
+        .setParameter("expired", expired)
+        .executeUpdate();
+    em.getTransaction().commit();
+  }
+}
@@ -0,0 +1,22 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import java.util.List;
+
+/**
+ * Where an {@link OutboxRelay} publishes the events of the outbox: a message
+ * broker, another service... An event may be published more than once if the
+ * relay stops before removing it from the outbox, so consumers should ignore
+ * the events whose id they have already seen.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public interface OutboxSink {
+
+  /**
+   * Publishes a batch of events in the order of their ids. Throwing an
+   * exception leaves the whole batch in the outbox.
+   */
+  void publish(List<OutboxEvent> events);
+}
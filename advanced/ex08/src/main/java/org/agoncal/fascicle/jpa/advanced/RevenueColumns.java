@@ -0,0 +1,337 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.descriptors.DescriptorEventListener;
+import org.eclipse.persistence.descriptors.DescriptorEventManager;
+import org.eclipse.persistence.internal.sessions.ObjectChangeSet;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.changesets.ChangeRecord;
+import org.eclipse.persistence.sessions.changesets.CollectionChangeRecord;
+import org.eclipse.persistence.sessions.changesets.UnitOfWorkChangeSet;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keeps the order lines in memory, column by column, to compute revenues
+ * (<code>unitPrice * quantity</code>) per day of order creation without going
+ * through the entity manager.
+ * <p>
+ * Lines are partitioned by month, each partition holding its epoch days, unit
+ * prices and quantities in primitive arrays that aggregations scan in tight
+ * loops, partitions in parallel. A missing unit price or quantity is kept as
+ * zero.
+ * <p>
+ * Once loaded, the columns follow the order lines committed through the
+ * factory: lines of new orders and lines added to existing orders are
+ * appended. Lines that are changed or removed are not followed, a new
+ * {@link #load(EntityManagerFactory)} takes them into account.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class RevenueColumns implements AutoCloseable {
+
+  private final NavigableMap<YearMonth, Partition> partitions = new ConcurrentSkipListMap<>();
+  private final EntityManagerFactory emf;
+  // While loading, a line committed after the listener was added, in a new
+  // order or appended to an existing one, may also be read by the query, it is
+  // only counted by the first to see it
+  private Set<Long> queried = new HashSet<>();
+  private Set<Long> followed = new HashSet<>();
+  // Descriptor events are shared by all the sessions of the factory, unlike
+  // session events that are copied when an entity manager is created
+  private final DescriptorEventListener listener = new DescriptorEventAdapter() {
+    @Override
+    public void postInsert(DescriptorEvent event) {
+      PurchaseOrder order = (PurchaseOrder) event.getObject();
+      if (order.getOrderLines() != null)
+        pending(event.getSession()).written(order, order.getOrderLines());
+    }
+
+    @Override
+    public void postUpdate(DescriptorEvent event) {
+      // Only the join table changed when a line is added, the change set is
+      // then left out of the event
+      UnitOfWorkChangeSet uowChanges = ((UnitOfWorkImpl) event.getSession()).getUnitOfWorkChangeSet();
+      ObjectChangeSet changes = uowChanges == null ? null : (ObjectChangeSet) uowChanges.getObjectChangeSetForClone(event.getObject());
+      ChangeRecord lines = changes == null ? null : changes.getChangesForAttributeNamed("orderLines");
+      if (lines instanceof CollectionChangeRecord) {
+        List<OrderLine> added = new ArrayList<>();
+        for (Object each : ((CollectionChangeRecord) lines).getAddObjectList().keySet())
+          added.add((OrderLine) ((ObjectChangeSet) each).getUnitOfWorkClone());
+        pending(event.getSession()).written((PurchaseOrder) event.getObject(), added);
+      }
+    }
+  };
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  private RevenueColumns(EntityManagerFactory emf) {
+    this.emf = emf;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Loads the order lines of the factory and follows the lines committed
+   * afterwards, until closed.
+   */
+  public static RevenueColumns load(EntityManagerFactory emf) {
+    RevenueColumns columns = new RevenueColumns(emf);
+    // Listens first so that no order committed while loading is missed
+    columns.descriptorEvents().addListener(columns.listener);
+    EntityManager em = emf.createEntityManager();
+    try {
+      em.createQuery("SELECT l.id, o.creationDate, l.unitPrice, l.quantity FROM PurchaseOrder o JOIN o.orderLines l", Object[].class)
+        .getResultStream()
+        .forEach(row -> columns.addQueried((Long) row[0], (LocalDateTime) row[1], (Double) row[2], (Integer) row[3]));
+    } finally {
+      em.close();
+    }
+    synchronized (columns) {
+      columns.queried = null;
+      columns.followed = null;
+    }
+    return columns;
+  }
+
+  public void add(LocalDateTime creationDate, Double unitPrice, Integer quantity) {
+    LocalDate day = creationDate.toLocalDate();
+    partitions.computeIfAbsent(YearMonth.from(day), month -> new Partition())
+      .add(day.toEpochDay(), unitPrice == null ? 0 : unitPrice, quantity == null ? 0 : quantity);
+  }
+
+  /**
+   * @return the revenue of the order lines created between the two days,
+   * both included
+   */
+  public double revenue(LocalDate from, LocalDate to) {
+    long first = from.toEpochDay();
+    long last = to.toEpochDay();
+    return partitionsBetween(from, to).parallelStream().mapToDouble(partition -> partition.revenue(first, last)).sum();
+  }
+
+  /**
+   * @return the number of order lines created between the two days, both
+   * included
+   */
+  public long count(LocalDate from, LocalDate to) {
+    long first = from.toEpochDay();
+    long last = to.toEpochDay();
+    return partitionsBetween(from, to).parallelStream().mapToLong(partition -> partition.count(first, last)).sum();
+  }
+
+  /**
+   * @return the revenue of each day between the two days, both included, that
+   * has order lines
+   */
+  public SortedMap<LocalDate, Double> revenueByDay(LocalDate from, LocalDate to) {
+    long first = from.toEpochDay();
+    long last = to.toEpochDay();
+    SortedMap<LocalDate, Double> revenues = new TreeMap<>();
+    partitionsBetween(from, to).parallelStream()
+      .map(partition -> partition.revenueByDay(first, last))
+      .sequential()
+      .forEach(revenues::putAll);
+    return revenues;
+  }
+
+  @Override
+  public void close() {
+    descriptorEvents().removeListener(listener);
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private Collection<Partition> partitionsBetween(LocalDate from, LocalDate to) {
+    return partitions.subMap(YearMonth.from(from), true, YearMonth.from(to), true).values();
+  }
+
+  private synchronized void addQueried(Long lineId, LocalDateTime creationDate, Double unitPrice, Integer quantity) {
+    if (followed.contains(lineId))
+      return;
+    queried.add(lineId);
+    add(creationDate, unitPrice, quantity);
+  }
+
+  private synchronized boolean follow(OrderLine line) {
+    if (queried == null)
+      return true;
+    if (queried.contains(line.getId()))
+      return false;
+    followed.add(line.getId());
+    return true;
+  }
+
+  private DescriptorEventManager descriptorEvents() {
+    return JpaHelper.getServerSession(emf).getDescriptor(PurchaseOrder.class).getEventManager();
+  }
+
+  /**
+   * @return the lines written by the unit of work, appended once it commits
+   */
+  private Pending pending(Session uow) {
+    for (Object each : uow.getEventManager().getListeners())
+      if (each instanceof Pending && ((Pending) each).columns() == this)
+        return (Pending) each;
+    Pending pending = new Pending();
+    uow.getEventManager().addListener(pending);
+    return pending;
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  /**
+   * The lines written by a unit of work, appended to the columns once it
+   * commits and dropped if it rolls back.
+   */
+  private class Pending extends SessionEventAdapter {
+
+    private final List<PurchaseOrder> orders = new ArrayList<>();
+    private final List<List<OrderLine>> lines = new ArrayList<>();
+
+    RevenueColumns columns() {
+      return RevenueColumns.this;
+    }
+
+    void written(PurchaseOrder order, List<OrderLine> lines) {
+      this.orders.add(order);
+      this.lines.add(new ArrayList<>(lines));
+    }
+
+    @Override
+    public void postCommitUnitOfWork(SessionEvent event) {
+      for (int i = 0; i < orders.size(); i++) {
+        PurchaseOrder order = orders.get(i);
+        for (OrderLine line : lines.get(i))
+          if (follow(line))
+            add(order.getCreationDate(), line.getUnitPrice(), line.getQuantity());
+      }
+      discard();
+    }
+
+    @Override
+    public void postRollbackTransaction(SessionEvent event) {
+      discard();
+    }
+
+    @Override
+    public void postReleaseUnitOfWork(SessionEvent event) {
+      discard();
+    }
+
+    private void discard() {
+      orders.clear();
+      lines.clear();
+    }
+  }
+
+  /**
+   * The lines of one month. Values are only appended, arrays are replaced by
+   * larger copies, so a scan works on the arrays and size read together.
+   */
+  private static class Partition {
+
+    private long[] epochDays = new long[64];
+    private double[] unitPrices = new double[64];
+    private int[] quantities = new int[64];
+    private int size;
+
+    synchronized void add(long epochDay, double unitPrice, int quantity) {
+      if (size == epochDays.length) {
+        epochDays = Arrays.copyOf(epochDays, size * 2);
+        unitPrices = Arrays.copyOf(unitPrices, size * 2);
+        quantities = Arrays.copyOf(quantities, size * 2);
+      }
+      epochDays[size] = epochDay;
+      unitPrices[size] = unitPrice;
+      quantities[size] = quantity;
+      size++;
+    }
+
+    double revenue(long first, long last) {
+      Columns c = columns();
+      double revenue = 0;
+      for (int i = 0; i < c.size; i++)
+        if (c.epochDays[i] >= first && c.epochDays[i] <= last)
+          revenue += c.unitPrices[i] * c.quantities[i];
+      return revenue;
+    }
+
+    long count(long first, long last) {
+      Columns c = columns();
+      long count = 0;
+      for (int i = 0; i < c.size; i++)
+        if (c.epochDays[i] >= first && c.epochDays[i] <= last)
+          count++;
+      return count;
+    }
+
+    SortedMap<LocalDate, Double> revenueByDay(long first, long last) {
+      Columns c = columns();
+      SortedMap<LocalDate, Double> revenues = new TreeMap<>();
+      if (c.size == 0)
+        return revenues;
+      // Days of a month are at most 31 apart from the first day of the month
+      long start = LocalDate.ofEpochDay(c.epochDays[0]).withDayOfMonth(1).toEpochDay();
+      double[] perDay = new double[31];
+      boolean[] present = new boolean[31];
+      for (int i = 0; i < c.size; i++)
+        if (c.epochDays[i] >= first && c.epochDays[i] <= last) {
+          int day = (int) (c.epochDays[i] - start);
+          perDay[day] += c.unitPrices[i] * c.quantities[i];
+          present[day] = true;
+        }
+      for (int day = 0; day < perDay.length; day++)
+        if (present[day])
+          revenues.put(LocalDate.ofEpochDay(start + day), perDay[day]);
+      return revenues;
+    }
+
+    private synchronized Columns columns() {
+      return new Columns(epochDays, unitPrices, quantities, size);
+    }
+  }
+
+  private static class Columns {
+    private final long[] epochDays;
+    private final double[] unitPrices;
+    private final int[] quantities;
+    private final int size;
+
+    Columns(long[] epochDays, double[] unitPrices, int[] quantities, int size) {
+      this.epochDays = epochDays;
+      this.unitPrices = unitPrices;
+      this.quantities = quantities;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.Persistence;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that detached purchase orders and their lines are merged with one
+ * <code>SELECT</code> per entity type, and an <code>UPDATE</code> of the
+ * changed columns only.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class GraphMergerTest {
+
+  private static final int NB_OF_ORDERS = 20;
+  private static final int NB_OF_LINES = 5;
+
+  private static EntityManagerFactory emf;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    Map<String, Object> properties = StatementCounter.properties();
+    // A database of its own, not to drop the tables of the other tests
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:graphMergerDB");
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldMergeOrderGraphsWithOneSelectPerType() throws Exception {
+    List<PurchaseOrder> merged = modify(detach(createOrders()));
+    List<PurchaseOrder> naive = modify(detach(createOrders()));
+    emf.getCache().evictAll();
+
+    EntityManager em = emf.createEntityManager();
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    new GraphMerger(em).mergeAll(merged);
+    em.getTransaction().commit();
+    // The orders, then their lines batch fetched through the join table, and the ids of the new lines
+    assertEquals(3, StatementCounter.count("SELECT"));
+    assertEquals(1, StatementCounter.count("SELECT SEQ_COUNT"));
+    assertEquals(NB_OF_ORDERS, StatementCounter.count("UPDATE ORDERLINE SET QUANTITY = ? WHERE"));
+    assertEquals(2, StatementCounter.count("UPDATE purchase_order SET CREATIONDATE = ? WHERE"));
+    assertTrue(StatementCounter.statements("UPDATE").stream().noneMatch(sql -> sql.contains("ITEM") || sql.contains("UNITPRICE") || sql.contains("invoice_")));
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    for (PurchaseOrder order : naive) {
+      for (OrderLine line : order.getOrderLines())
+        if (line.getId() == null)
+          em.persist(line);
+        else
+          em.merge(line);
+      em.merge(order);
+    }
+    em.getTransaction().commit();
+    // One SELECT per order, per line and per join table
+    assertTrue(StatementCounter.count("SELECT") > NB_OF_ORDERS * NB_OF_LINES);
+    em.close();
+
+    emf.getCache().evictAll();
+    em = emf.createEntityManager();
+    assertEquals(LocalDateTime.of(2001, 3, 5, 10, 0), em.find(PurchaseOrder.class, merged.get(0).getId()).getCreationDate());
+    assertEquals(LocalDateTime.of(2001, 3, 6, 10, 0), em.find(PurchaseOrder.class, merged.get(1).getId()).getCreationDate());
+    for (PurchaseOrder order : merged) {
+      PurchaseOrder found = em.find(PurchaseOrder.class, order.getId());
+      assertEquals(NB_OF_LINES + 1, found.getOrderLines().size());
+      assertEquals(order.getOrderLines().get(0).getQuantity(), found.getOrderLines().get(0).getQuantity());
+      assertEquals("Extra", found.getOrderLines().get(NB_OF_LINES).getItem());
+      assertNotNull(found.getOrderLines().get(NB_OF_LINES).getId());
+      assertEquals("Ritherdon Rd", found.getInvoiceAddress().getStreet1());
+    }
+    em.close();
+  }
+
+  @Test
+  public void shouldPersistNewGraphsAndRejectUnknownOrders() throws Exception {
+    PurchaseOrder order = new PurchaseOrder();
+    order.setOrderLines(new ArrayList<>(Arrays.asList(new OrderLine("H2G2", 10d, 2), new OrderLine("The White Album", 5.5d, 1))));
+    order.setDeliveryAddress(new Address("Ritherdon Rd", "London", "8QE", "UK"));
+
+    EntityManager em = emf.createEntityManager();
+    em.getTransaction().begin();
+    PurchaseOrder managed = new GraphMerger(em).merge(order);
+    em.getTransaction().commit();
+    assertNotNull(managed.getId());
+    em.clear();
+    PurchaseOrder found = em.find(PurchaseOrder.class, managed.getId());
+    assertEquals(2, found.getOrderLines().size());
+    assertEquals("London", found.getDeliveryAddress().getCity());
+
+    PurchaseOrder unknown = new PurchaseOrder();
+    unknown.setId(-1L);
+    em.getTransaction().begin();
+    assertThrows(EntityNotFoundException.class, () -> new GraphMerger(em).merge(unknown));
+    em.getTransaction().rollback();
+    assertFalse(em.contains(unknown));
+    em.close();
+  }
+
+  private static List<Long> createOrders() {
+    EntityManager em = emf.createEntityManager();
+    List<Long> ids = new ArrayList<>();
+    em.getTransaction().begin();
+    for (int i = 0; i < NB_OF_ORDERS; i++) {
+      PurchaseOrder order = new PurchaseOrder();
+      // More precise than the column, whatever the clock of the JDK
+      order.setCreationDate(LocalDateTime.of(2001, 3, 1, 10, 0, 0, 123456789));
+      order.setOrderLines(new ArrayList<>());
+      order.setInvoiceAddress(new Address("Ritherdon Rd", "London", "8QE", "UK"));
+      for (int j = 0; j < NB_OF_LINES; j++) {
+        OrderLine line = new OrderLine("Item " + j, 10d + j, 1);
+        em.persist(line);
+        order.getOrderLines().add(line);
+      }
+      em.persist(order);
+      ids.add(order.getId());
+    }
+    em.getTransaction().commit();
+    em.close();
+    return ids;
+  }
+
+  /**
+   * Reads the orders and their lines, as a client would before sending them
+   * back, and closes the entity manager.
+   */
+  private static List<PurchaseOrder> detach(List<Long> ids) {
+    EntityManager em = emf.createEntityManager();
+    List<PurchaseOrder> orders = em.createQuery("SELECT DISTINCT o FROM PurchaseOrder o JOIN FETCH o.orderLines WHERE o.id IN :ids ORDER BY o.id", PurchaseOrder.class)
+      .setParameter("ids", ids)
+      .getResultList();
+    em.close();
+    return orders;
+  }
+
+  /**
+   * Changes the quantity of the first line of every order, adds a line to
+   * every order, and changes the creation date of the first two orders.
+   */
+  private static List<PurchaseOrder> modify(List<PurchaseOrder> orders) {
+    for (PurchaseOrder order : orders) {
+      order.getOrderLines().get(0).setQuantity(3);
+      order.getOrderLines().add(new OrderLine("Extra", 1d, 1));
+    }
+    orders.get(0).setCreationDate(LocalDateTime.of(2001, 3, 5, 10, 0));
+    orders.get(1).setCreationDate(LocalDateTime.of(2001, 3, 6, 10, 0));
+    return orders;
+  }
+}
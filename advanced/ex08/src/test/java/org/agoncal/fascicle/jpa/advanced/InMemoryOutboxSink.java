@@ -0,0 +1,32 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the published events in memory, or fails to publish them.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class InMemoryOutboxSink implements OutboxSink {
+
+  private final List<OutboxEvent> events = new ArrayList<>();
+  private volatile boolean failing;
+
+  @Override
+  public synchronized void publish(List<OutboxEvent> batch) {
+    if (failing)
+      throw new IllegalStateException("The sink is down");
+    events.addAll(batch);
+  }
+
+  public synchronized List<OutboxEvent> getEvents() {
+    return new ArrayList<>(events);
+  }
+
+  public void setFailing(boolean failing) {
+    this.failing = failing;
+  }
+}
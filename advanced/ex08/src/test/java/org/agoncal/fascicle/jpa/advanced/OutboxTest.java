@@ -0,0 +1,135 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class OutboxTest extends AbstractPersistentTest {
+
+  private final InMemoryOutboxSink sink = new InMemoryOutboxSink();
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeEach
+  public void emptyOutbox() {
+    tx.begin();
+    em.createQuery("DELETE FROM OutboxEvent e").executeUpdate();
+    tx.commit();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldRecordAnEventInTheTransactionOfTheOrder() throws Exception {
+    OutboxRelay relay = new OutboxRelay(emf, sink, 10);
+    PurchaseOrder order = createOrder();
+    assertEquals(1, relay.getBacklog());
+
+    PurchaseOrder rolledBack = newOrder();
+    tx.begin();
+    em.persist(rolledBack);
+    rolledBack.getOrderLines().forEach(em::persist);
+    em.flush();
+    tx.rollback();
+    assertEquals(1, relay.getBacklog());
+
+    assertEquals(1, relay.drain());
+    OutboxEvent event = sink.getEvents().get(0);
+    assertEquals("PurchaseOrderCreated", event.getType());
+    assertEquals(order.getId(), event.getAggregateId());
+    assertTrue(event.getPayload().contains("{\"item\":\"H2G2\",\"unitPrice\":12.0,\"quantity\":1}"), event.getPayload());
+  }
+
+  @Test
+  public void shouldRelayEventsInBatches() throws Exception {
+    for (int i = 0; i < 25; i++)
+      createOrder();
+    OutboxRelay relay = new OutboxRelay(emf, sink, 10);
+    assertEquals(25, relay.getBacklog());
+    assertTrue(relay.getLag().compareTo(Duration.ZERO) >= 0);
+
+    assertEquals(25, relay.drain());
+
+    assertEquals(3, relay.getBatches());
+    assertEquals(25, relay.getPublished());
+    assertTrue(relay.getThroughput() > 0);
+    assertEquals(0, relay.getBacklog());
+    assertEquals(Duration.ZERO, relay.getLag());
+    List<Long> ids = sink.getEvents().stream().map(OutboxEvent::getId).collect(Collectors.toList());
+    assertEquals(ids.stream().sorted().collect(Collectors.toList()), ids);
+  }
+
+  @Test
+  public void shouldLeaveEventsInTheOutboxWhenTheSinkFails() throws Exception {
+    createOrder();
+    createOrder();
+    sink.setFailing(true);
+    OutboxRelay relay = new OutboxRelay(emf, sink, 10, Duration.ZERO);
+    assertThrows(IllegalStateException.class, relay::relay);
+    assertEquals(2, relay.getBacklog());
+
+    sink.setFailing(false);
+    assertEquals(2, new OutboxRelay(emf, sink, 10, Duration.ZERO).drain());
+    assertEquals(0, relay.getBacklog());
+  }
+
+  @Test
+  public void shouldPublishEachEventOnceWithConcurrentRelays() throws Exception {
+    for (int i = 0; i < 100; i++)
+      createOrder();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Integer>> drained = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      OutboxRelay relay = new OutboxRelay(emf, sink, 5);
+      drained.add(executor.submit(relay::drain));
+    }
+    int total = 0;
+    for (Future<Integer> count : drained)
+      total += count.get();
+    executor.shutdown();
+
+    assertEquals(100, total);
+    Set<Long> ids = new HashSet<>();
+    sink.getEvents().forEach(event -> assertTrue(ids.add(event.getId()), "Published twice: " + event.getId()));
+    assertEquals(100, ids.size());
+  }
+
+  private PurchaseOrder createOrder() {
+    PurchaseOrder order = newOrder();
+    tx.begin();
+    em.persist(order);
+    order.getOrderLines().forEach(em::persist);
+    tx.commit();
+    return order;
+  }
+
+  private PurchaseOrder newOrder() {
+    PurchaseOrder order = new PurchaseOrder();
+    order.setOrderLines(Arrays.asList(new OrderLine("H2G2", 12d, 1), new OrderLine("The White Album", 14.5d, 2)));
+    return order;
+  }
+}
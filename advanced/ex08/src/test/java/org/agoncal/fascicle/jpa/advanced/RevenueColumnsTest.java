@@ -0,0 +1,162 @@
+package org.agoncal.fascicle.jpa.advanced;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.ReportQuery;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.SessionEventListener;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class RevenueColumnsTest extends AbstractPersistentTest {
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldAggregateRevenuesPerDay() throws Exception {
+    createOrder(LocalDateTime.of(2001, 3, 5, 10, 0), new OrderLine("H2G2", 10d, 2), new OrderLine("The White Album", 5.5d, 1));
+    createOrder(LocalDateTime.of(2001, 3, 31, 23, 59), new OrderLine("H2G2", 3d, 3));
+    createOrder(LocalDateTime.of(2001, 4, 1, 0, 0), new OrderLine("Java EE 7", 100d, 1));
+
+    try (RevenueColumns columns = RevenueColumns.load(emf)) {
+      assertEquals(34.5, columns.revenue(LocalDate.of(2001, 3, 1), LocalDate.of(2001, 3, 31)), 0.001);
+      assertEquals(3, columns.count(LocalDate.of(2001, 3, 1), LocalDate.of(2001, 3, 31)));
+      assertEquals(2, columns.count(LocalDate.of(2001, 3, 31), LocalDate.of(2001, 4, 1)));
+
+      SortedMap<LocalDate, Double> expected = new TreeMap<>();
+      expected.put(LocalDate.of(2001, 3, 5), 25.5);
+      expected.put(LocalDate.of(2001, 3, 31), 9d);
+      expected.put(LocalDate.of(2001, 4, 1), 100d);
+      assertEquals(expected, columns.revenueByDay(LocalDate.of(2001, 1, 1), LocalDate.of(2001, 4, 30)));
+    }
+  }
+
+  @Test
+  public void shouldFollowCommittedOrderLines() throws Exception {
+    LocalDate day = LocalDate.of(2003, 6, 15);
+    PurchaseOrder order = createOrder(day.atTime(12, 0), new OrderLine("H2G2", 10d, 1));
+
+    try (RevenueColumns columns = RevenueColumns.load(emf)) {
+      assertEquals(10, columns.revenue(day, day), 0.001);
+
+      createOrder(day.atTime(13, 0), new OrderLine("H2G2", 2d, 5));
+      assertEquals(20, columns.revenue(day, day), 0.001);
+
+      OrderLine added = new OrderLine("The White Album", 14.5d, 2);
+      tx.begin();
+      PurchaseOrder managed = em.find(PurchaseOrder.class, order.getId());
+      managed.setOrderLines(new ArrayList<>(managed.getOrderLines()));
+      managed.getOrderLines().add(added);
+      em.persist(added);
+      tx.commit();
+      assertEquals(49, columns.revenue(day, day), 0.001);
+      assertEquals(3, columns.count(day, day));
+
+      columns.close();
+      createOrder(day.atTime(14, 0), new OrderLine("H2G2", 1d, 1));
+      assertEquals(49, columns.revenue(day, day), 0.001);
+    }
+  }
+
+  @Test
+  public void shouldCountLinesCommittedWhileLoadingOnce() throws Exception {
+    LocalDate day = LocalDate.of(2004, 2, 10);
+    PurchaseOrder order = createOrder(day.atTime(12, 0), new OrderLine("H2G2", 10d, 1));
+
+    // Appends a line to the order, and creates another one, once the columns
+    // listen to the commits but before they read the lines
+    AtomicBoolean committed = new AtomicBoolean();
+    SessionEventListener whileLoading = new SessionEventAdapter() {
+      @Override
+      public void preExecuteQuery(SessionEvent event) {
+        if (event.getQuery() instanceof ReportQuery && committed.compareAndSet(false, true)) {
+          Thread writer = new Thread(() -> {
+            EntityManager other = emf.createEntityManager();
+            OrderLine added = new OrderLine("The White Album", 14.5d, 2);
+            other.getTransaction().begin();
+            PurchaseOrder managed = other.find(PurchaseOrder.class, order.getId());
+            managed.setOrderLines(new ArrayList<>(managed.getOrderLines()));
+            managed.getOrderLines().add(added);
+            other.persist(added);
+            PurchaseOrder created = new PurchaseOrder();
+            created.setCreationDate(day.atTime(13, 0));
+            created.setOrderLines(Arrays.asList(new OrderLine("H2G2", 2d, 5)));
+            other.persist(created);
+            created.getOrderLines().forEach(other::persist);
+            other.getTransaction().commit();
+            other.close();
+          });
+          writer.start();
+          try {
+            writer.join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+    JpaHelper.getServerSession(emf).getEventManager().addListener(whileLoading);
+    try (RevenueColumns columns = RevenueColumns.load(emf)) {
+      assertTrue(committed.get());
+      assertEquals(49, columns.revenue(day, day), 0.001);
+      assertEquals(3, columns.count(day, day));
+    } finally {
+      JpaHelper.getServerSession(emf).getEventManager().removeListener(whileLoading);
+    }
+  }
+
+  @Test
+  public void shouldAnswerLikeTheDatabase() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++)
+      createOrder(LocalDateTime.of(2002, 1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), 0),
+        new OrderLine("H2G2", (double) random.nextInt(100), 1 + random.nextInt(5)),
+        new OrderLine("The White Album", (double) random.nextInt(100), 1 + random.nextInt(5)));
+
+    LocalDate from = LocalDate.of(2002, 2, 10);
+    LocalDate to = LocalDate.of(2002, 9, 20);
+    Object[] expected = em.createQuery("SELECT SUM(l.unitPrice * l.quantity), COUNT(l) FROM PurchaseOrder o JOIN o.orderLines l WHERE o.creationDate >= :from AND o.creationDate < :to", Object[].class)
+      .setParameter("from", from.atStartOfDay())
+      .setParameter("to", to.plusDays(1).atStartOfDay())
+      .setHint(QueryHints.BIND_PARAMETERS, HintValues.TRUE)
+      .getSingleResult();
+
+    try (RevenueColumns columns = RevenueColumns.load(emf)) {
+      assertEquals(((Number) expected[0]).doubleValue(), columns.revenue(from, to), 0.001);
+      assertEquals(((Number) expected[1]).longValue(), columns.count(from, to));
+      assertEquals(columns.revenue(from, to), columns.revenueByDay(from, to).values().stream().mapToDouble(Double::doubleValue).sum(), 0.001);
+    }
+  }
+
+  private PurchaseOrder createOrder(LocalDateTime creationDate, OrderLine... lines) {
+    PurchaseOrder order = new PurchaseOrder();
+    order.setCreationDate(creationDate);
+    order.setOrderLines(Arrays.asList(lines));
+    tx.begin();
+    em.persist(order);
+    order.getOrderLines().forEach(em::persist);
+    tx.commit();
+    return order;
+  }
+}
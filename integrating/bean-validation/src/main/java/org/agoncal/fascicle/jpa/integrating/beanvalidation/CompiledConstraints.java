@@ -0,0 +1,179 @@
+package org.agoncal.fascicle.jpa.integrating.beanvalidation;
+
+import javax.validation.constraints.Digits;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.Size;
+import javax.validation.groups.Default;
+import javax.validation.metadata.BeanDescriptor;
+import javax.validation.metadata.ConstraintDescriptor;
+import javax.validation.metadata.PropertyDescriptor;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The field constraints of an entity flattened into an array of checks, built
+ * once from the Bean Validation metadata. Running the checks walks no metadata
+ * and allocates nothing (except for <code>@Digits</code> on floating point
+ * numbers, converted to <code>BigDecimal</code> exactly as Hibernate Validator
+ * does).
+ * <p>
+ * A check only answers "certainly valid": any doubt (a failing value, NaN...)
+ * is left to the full validator, which builds the constraint violations.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class CompiledConstraints {
+
+  private final Field[] fields;
+  private final Check[] checks;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  private CompiledConstraints(List<Field> fields, List<Check> checks) {
+    this.fields = fields.toArray(new Field[0]);
+    this.checks = checks.toArray(new Check[0]);
+  }
+
+  /**
+   * @return the compiled constraints, or <code>null</code> if the class uses a
+   * feature the fast path does not support (class level, getter, cascaded,
+   * composed or grouped constraints, or any other constraint type)
+   */
+  public static CompiledConstraints compile(Class<?> type, BeanDescriptor descriptor) {
+    if (!descriptor.getConstraintDescriptors().isEmpty())
+      return null;
+
+    List<Field> fields = new ArrayList<>();
+    List<Check> checks = new ArrayList<>();
+    for (PropertyDescriptor property : descriptor.getConstrainedProperties()) {
+      if (property.isCascaded())
+        return null;
+
+      Field field = findField(type, property.getPropertyName());
+      if (field == null)
+        return null;
+
+      Set<ConstraintDescriptor<?>> onField = property.findConstraints().declaredOn(ElementType.FIELD).getConstraintDescriptors();
+      if (onField.size() != property.getConstraintDescriptors().size())
+        return null;
+
+      for (ConstraintDescriptor<?> constraint : property.getConstraintDescriptors()) {
+        Check check = compile(constraint, field.getType());
+        if (check == null)
+          return null;
+        fields.add(field);
+        checks.add(check);
+      }
+    }
+    return new CompiledConstraints(fields, checks);
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public boolean isValid(Object entity) {
+    try {
+      for (int i = 0; i < checks.length; i++) {
+        if (!checks[i].isValid(fields[i].get(entity)))
+          return false;
+      }
+      return true;
+    } catch (IllegalAccessException e) {
+      return false;
+    }
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private static Check compile(ConstraintDescriptor<?> constraint, Class<?> fieldType) {
+    if (!constraint.getComposingConstraints().isEmpty() || !constraint.getGroups().equals(Collections.singleton(Default.class)))
+      return null;
+
+    Annotation annotation = constraint.getAnnotation();
+    if (annotation instanceof NotNull)
+      return value -> value != null;
+
+    if (annotation instanceof Size && CharSequence.class.isAssignableFrom(fieldType)) {
+      int min = ((Size) annotation).min();
+      int max = ((Size) annotation).max();
+      return value -> value == null || (((CharSequence) value).length() >= min && ((CharSequence) value).length() <= max);
+    }
+
+    if (annotation instanceof Digits && Number.class.isAssignableFrom(fieldType)) {
+      int integer = ((Digits) annotation).integer();
+      int fraction = ((Digits) annotation).fraction();
+      return value -> value == null || hasDigits((Number) value, integer, fraction);
+    }
+
+    if (annotation instanceof Positive && Number.class.isAssignableFrom(fieldType))
+      return value -> value == null || isPositive((Number) value);
+
+    return null;
+  }
+
+  private static boolean hasDigits(Number value, int integer, int fraction) {
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      long number = value.longValue();
+      if (number == Long.MIN_VALUE)
+        return false;
+      int length = 1;
+      for (long abs = Math.abs(number); abs >= 10; abs /= 10)
+        length++;
+      return length <= integer;
+    }
+
+    if (value instanceof Float || value instanceof Double) {
+      double number = value.doubleValue();
+      if (Double.isNaN(number) || Double.isInfinite(number))
+        return false;
+      BigDecimal decimal = new BigDecimal(value.toString()).stripTrailingZeros();
+      return decimal.precision() - decimal.scale() <= integer && Math.max(decimal.scale(), 0) <= fraction;
+    }
+
+    return false;
+  }
+
+  private static boolean isPositive(Number value) {
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+      return value.longValue() > 0;
+    if (value instanceof Float || value instanceof Double)
+      return value.doubleValue() > 0 && !Double.isInfinite(value.doubleValue());
+    return false;
+  }
+
+  static Field findField(Class<?> type, String name) {
+    for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+      try {
+        Field field = current.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+      } catch (NoSuchFieldException e) {
+        // Look in the superclass
+      }
+    }
+    return null;
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  @FunctionalInterface
+  private interface Check {
+    boolean isValid(Object value);
+  }
+}
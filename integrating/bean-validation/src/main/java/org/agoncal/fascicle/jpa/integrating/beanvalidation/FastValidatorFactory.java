@@ -0,0 +1,325 @@
+package org.agoncal.fascicle.jpa.integrating.beanvalidation;
+
+import javax.validation.ClockProvider;
+import javax.validation.ConstraintValidatorFactory;
+import javax.validation.ConstraintViolation;
+import javax.validation.MessageInterpolator;
+import javax.validation.ParameterNameProvider;
+import javax.validation.TraversableResolver;
+import javax.validation.Validator;
+import javax.validation.ValidatorContext;
+import javax.validation.ValidatorFactory;
+import javax.validation.executable.ExecutableValidator;
+import javax.validation.groups.Default;
+import javax.validation.metadata.BeanDescriptor;
+import javax.validation.metadata.PropertyDescriptor;
+import javax.validation.valueextraction.ValueExtractor;
+import java.lang.annotation.ElementType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Validator factory that validates the given entities against their
+ * {@link CompiledConstraints} first and returns a shared empty set when they
+ * are valid. Only invalid entities (or unsupported constraints) go through the
+ * full validator, which reports the violations.
+ * <p>
+ * Hand it to the persistence provider so pre-persist and pre-update validation
+ * use the fast path:
+ * <pre>
+ * props.put("javax.persistence.validation.factory",
+ *   new FastValidatorFactory(Validation.buildDefaultValidatorFactory(), Book.class));
+ * Persistence.createEntityManagerFactory("cdbookstorePU", props);
+ * </pre>
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class FastValidatorFactory implements ValidatorFactory {
+
+  public static final String VALIDATION_FACTORY = "javax.persistence.validation.factory";
+
+  // Marks classes whose constraints read more than their own fields
+  private static final Field[] UNTRACKED = new Field[0];
+
+  private final ValidatorFactory delegate;
+  private final Map<Class<?>, CompiledConstraints> compiled = new HashMap<>();
+  private final ConcurrentMap<Class<?>, Field[]> constrainedFields = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Mark, Object[]> preValidated = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public FastValidatorFactory(ValidatorFactory delegate, Class<?>... entities) {
+    this.delegate = delegate;
+    Validator validator = delegate.getValidator();
+    for (Class<?> entity : entities) {
+      CompiledConstraints constraints = CompiledConstraints.compile(entity, validator.getConstraintsForClass(entity));
+      if (constraints != null)
+        compiled.put(entity, constraints);
+    }
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public boolean isCompiled(Class<?> entity) {
+    return compiled.containsKey(entity);
+  }
+
+  /**
+   * Records that the entity already passed validation (see
+   * {@link ParallelValidationStage}), with the values of its constrained
+   * fields, so its next default group validation, usually at pre-persist, is
+   * skipped if these values did not change meanwhile. Entities with class
+   * level, getter, cascaded or container element constraints are not recorded:
+   * their fields alone do not tell whether they are still valid.
+   */
+  void markPreValidated(Object entity) {
+    for (Reference<?> mark; (mark = collected.poll()) != null; )
+      preValidated.remove(mark);
+
+    Field[] fields = constrainedFieldsOf(entity.getClass());
+    if (fields != UNTRACKED)
+      preValidated.put(new Mark(entity, collected), stateOf(entity, fields));
+  }
+
+  boolean isPreValidated(Object entity) {
+    Object[] state = preValidated.get(new Mark(entity, null));
+    return state != null && Arrays.equals(state, stateOf(entity, constrainedFieldsOf(entity.getClass())));
+  }
+
+  @Override
+  public Validator getValidator() {
+    return new FastValidator(delegate.getValidator());
+  }
+
+  @Override
+  public ValidatorContext usingContext() {
+    return new FastValidatorContext(delegate.usingContext());
+  }
+
+  @Override
+  public MessageInterpolator getMessageInterpolator() {
+    return delegate.getMessageInterpolator();
+  }
+
+  @Override
+  public TraversableResolver getTraversableResolver() {
+    return delegate.getTraversableResolver();
+  }
+
+  @Override
+  public ConstraintValidatorFactory getConstraintValidatorFactory() {
+    return delegate.getConstraintValidatorFactory();
+  }
+
+  @Override
+  public ParameterNameProvider getParameterNameProvider() {
+    return delegate.getParameterNameProvider();
+  }
+
+  @Override
+  public ClockProvider getClockProvider() {
+    return delegate.getClockProvider();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> type) {
+    if (type.isInstance(this))
+      return type.cast(this);
+    return delegate.unwrap(type);
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private Field[] constrainedFieldsOf(Class<?> type) {
+    return constrainedFields.computeIfAbsent(type, key -> {
+      BeanDescriptor descriptor = delegate.getValidator().getConstraintsForClass(key);
+      if (!descriptor.getConstraintDescriptors().isEmpty())
+        return UNTRACKED;
+
+      List<Field> fields = new ArrayList<>();
+      for (PropertyDescriptor property : descriptor.getConstrainedProperties()) {
+        if (property.isCascaded() || !property.getConstrainedContainerElementTypes().isEmpty())
+          return UNTRACKED;
+        if (property.findConstraints().declaredOn(ElementType.FIELD).getConstraintDescriptors().size() != property.getConstraintDescriptors().size())
+          return UNTRACKED;
+        Field field = CompiledConstraints.findField(key, property.getPropertyName());
+        if (field == null)
+          return UNTRACKED;
+        fields.add(field);
+      }
+      return fields.toArray(new Field[0]);
+    });
+  }
+
+  private static Object[] stateOf(Object entity, Field[] fields) {
+    Object[] state = new Object[fields.length];
+    try {
+      for (int i = 0; i < fields.length; i++)
+        state[i] = fields[i].get(entity);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Cannot read the constrained fields of " + entity.getClass().getName(), e);
+    }
+    return state;
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  /**
+   * Weak key comparing entities by identity, so that an entity is never
+   * mistaken for an equal one and is still collected while marked.
+   */
+  private static final class Mark extends WeakReference<Object> {
+
+    private final int hash;
+
+    private Mark(Object entity, ReferenceQueue<Object> queue) {
+      super(entity, queue);
+      this.hash = System.identityHashCode(entity);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof Mark))
+        return false;
+      Object entity = get();
+      return entity != null && entity == ((Mark) o).get();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private class FastValidator implements Validator {
+
+    private final Validator validator;
+
+    private FastValidator(Validator validator) {
+      this.validator = validator;
+    }
+
+    @Override
+    public <T> Set<ConstraintViolation<T>> validate(T object, Class<?>... groups) {
+      if (!isDefaultGroup(groups))
+        return validator.validate(object, groups);
+      // No lookup, nor key allocation, while no entity is marked
+      Object[] state = preValidated.isEmpty() ? null : preValidated.remove(new Mark(object, null));
+      if (state != null && Arrays.equals(state, stateOf(object, constrainedFieldsOf(object.getClass()))))
+        return Collections.emptySet();
+
+      CompiledConstraints constraints = compiled.get(object.getClass());
+      if (constraints != null && constraints.isValid(object))
+        return Collections.emptySet();
+      return validator.validate(object, groups);
+    }
+
+    private boolean isDefaultGroup(Class<?>[] groups) {
+      return groups.length == 0 || (groups.length == 1 && groups[0] == Default.class);
+    }
+
+    @Override
+    public <T> Set<ConstraintViolation<T>> validateProperty(T object, String propertyName, Class<?>... groups) {
+      return validator.validateProperty(object, propertyName, groups);
+    }
+
+    @Override
+    public <T> Set<ConstraintViolation<T>> validateValue(Class<T> beanType, String propertyName, Object value, Class<?>... groups) {
+      return validator.validateValue(beanType, propertyName, value, groups);
+    }
+
+    @Override
+    public BeanDescriptor getConstraintsForClass(Class<?> clazz) {
+      return validator.getConstraintsForClass(clazz);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) {
+      return validator.unwrap(type);
+    }
+
+    @Override
+    public ExecutableValidator forExecutables() {
+      return validator.forExecutables();
+    }
+  }
+
+  private class FastValidatorContext implements ValidatorContext {
+
+    private final ValidatorContext context;
+
+    private FastValidatorContext(ValidatorContext context) {
+      this.context = context;
+    }
+
+    @Override
+    public ValidatorContext messageInterpolator(MessageInterpolator messageInterpolator) {
+      context.messageInterpolator(messageInterpolator);
+      return this;
+    }
+
+    @Override
+    public ValidatorContext traversableResolver(TraversableResolver traversableResolver) {
+      context.traversableResolver(traversableResolver);
+      return this;
+    }
+
+    @Override
+    public ValidatorContext constraintValidatorFactory(ConstraintValidatorFactory factory) {
+      context.constraintValidatorFactory(factory);
+      return this;
+    }
+
+    @Override
+    public ValidatorContext parameterNameProvider(ParameterNameProvider parameterNameProvider) {
+      context.parameterNameProvider(parameterNameProvider);
+      return this;
+    }
+
+    @Override
+    public ValidatorContext clockProvider(ClockProvider clockProvider) {
+      context.clockProvider(clockProvider);
+      return this;
+    }
+
+    @Override
+    public ValidatorContext addValueExtractor(ValueExtractor<?> extractor) {
+      context.addValueExtractor(extractor);
+      return this;
+    }
+
+    @Override
+    public Validator getValidator() {
+      return new FastValidator(context.getValidator());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.agoncal.fascicle.jpa.integrating.beanvalidation;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk load stage that validates batches of entities in parallel, before they
+ * reach the <code>EntityManager</code>. Valid entities are returned in input
+ * order and marked in the {@link FastValidatorFactory} so they are not
+ * validated again at pre-persist, unless their constrained fields changed in
+ * between. Invalid ones are sent, in input order, to the reject channel with
+ * their violations.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ParallelValidationStage<T> implements AutoCloseable {
+
+  private final FastValidatorFactory factory;
+  private final Validator validator;
+  private final BiConsumer<T, Set<ConstraintViolation<T>>> rejects;
+  private final ForkJoinPool pool;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public ParallelValidationStage(FastValidatorFactory factory, BiConsumer<T, Set<ConstraintViolation<T>>> rejects) {
+    this(factory, rejects, Runtime.getRuntime().availableProcessors());
+  }
+
+  public ParallelValidationStage(FastValidatorFactory factory, BiConsumer<T, Set<ConstraintViolation<T>>> rejects, int parallelism) {
+    this.factory = factory;
+    this.validator = factory.getValidator();
+    this.rejects = rejects;
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public List<T> validate(List<T> batch) {
+    List<Set<ConstraintViolation<T>>> violations;
+    try {
+      // Parallel streams run in the pool they are started from
+      violations = pool.submit(() -> IntStream.range(0, batch.size()).parallel()
+        .mapToObj(i -> validator.validate(batch.get(i)))
+        .collect(Collectors.toList())).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while validating the batch", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Cannot validate the batch", e.getCause());
+    }
+
+    List<T> valid = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      T entity = batch.get(i);
+      if (violations.get(i).isEmpty()) {
+        factory.markPreValidated(entity);
+        valid.add(entity);
+      } else {
+        rejects.accept(entity, violations.get(i));
+      }
+    }
+    return valid;
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,111 @@
+package org.agoncal.fascicle.jpa.integrating.beanvalidation;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.RollbackException;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class FastValidatorFactoryTest {
+
+  // ======================================
+  // =             Attributes             =
+  // ======================================
+
+  private static ValidatorFactory fullFactory;
+  private static FastValidatorFactory fastFactory;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactories() {
+    fullFactory = Validation.buildDefaultValidatorFactory();
+    fastFactory = new FastValidatorFactory(Validation.buildDefaultValidatorFactory(), Book.class);
+  }
+
+  @AfterAll
+  public static void closeFactories() {
+    fullFactory.close();
+    fastFactory.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldCompileBookConstraints() {
+    assertTrue(fastFactory.isCompiled(Book.class));
+  }
+
+  @Test
+  public void shouldReturnSharedEmptySetForAValidBook() {
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-2").nbOfPages(354);
+
+    assertSame(Collections.emptySet(), fastFactory.getValidator().validate(book));
+  }
+
+  @Test
+  public void shouldReportSameViolationsAsFullValidation() {
+    Validator fast = fastFactory.getValidator();
+    Validator full = fullFactory.getValidator();
+
+    Book[] books = {
+      new Book().title(null).price(12.5F).isbn("1-84023-2").nbOfPages(354),
+      new Book().title("H2G2").price(12345.5F),
+      new Book().title("H2G2").price(12.555F),
+      new Book().title("H2G2").isbn("1234"),
+      new Book().title("H2G2").nbOfPages(0),
+      new Book().title("H2G2").nbOfPages(-12)
+    };
+    for (Book book : books) {
+      Set<ConstraintViolation<Book>> violations = fast.validate(book);
+      assertEquals(full.validate(book).size(), violations.size());
+      assertEquals(1, violations.size());
+    }
+  }
+
+  @Test
+  public void shouldValidateThroughThePersistenceProvider() {
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstorePU", Collections.singletonMap(FastValidatorFactory.VALIDATION_FACTORY, fastFactory));
+    EntityManager em = emf.createEntityManager();
+
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-2").nbOfPages(354);
+    em.getTransaction().begin();
+    em.persist(book);
+    em.getTransaction().commit();
+    assertNotNull(book.getId(), "Id should not be null");
+
+    Book invalid = new Book().title(null).price(12.5F).isbn("1-84023-2").nbOfPages(354);
+    assertThrows(RollbackException.class, () -> {
+      em.getTransaction().begin();
+      em.persist(invalid);
+      em.getTransaction().commit();
+    });
+
+    em.close();
+    emf.close();
+  }
+}
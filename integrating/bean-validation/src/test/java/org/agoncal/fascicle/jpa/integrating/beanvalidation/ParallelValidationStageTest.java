@@ -0,0 +1,122 @@
+package org.agoncal.fascicle.jpa.integrating.beanvalidation;
+
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.RollbackException;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ParallelValidationStageTest {
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldKeepOrderAndRejectInvalidBooks() {
+    FastValidatorFactory factory = new FastValidatorFactory(Validation.buildDefaultValidatorFactory(), Book.class);
+    List<Book> books = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      books.add(new Book().title(i % 10 == 0 ? null : "Book " + i).price(12.5F).isbn("1-84023-2").nbOfPages(i + 1));
+
+    List<Book> rejected = new ArrayList<>();
+    List<Set<ConstraintViolation<Book>>> violations = new ArrayList<>();
+    List<Book> valid;
+    try (ParallelValidationStage<Book> stage = new ParallelValidationStage<>(factory, (book, v) -> {
+      rejected.add(book);
+      violations.add(v);
+    }, 4)) {
+      valid = stage.validate(books);
+    }
+
+    assertEquals(900, valid.size());
+    assertEquals(100, rejected.size());
+    for (int i = 1; i < valid.size(); i++)
+      assertTrue(valid.get(i - 1).getNbOfPages() < valid.get(i).getNbOfPages());
+    for (int i = 0; i < rejected.size(); i++) {
+      assertSame(books.get(i * 10), rejected.get(i));
+      assertEquals("title", violations.get(i).iterator().next().getPropertyPath().toString());
+    }
+    valid.forEach(book -> assertTrue(factory.isPreValidated(book)));
+    rejected.forEach(book -> assertFalse(factory.isPreValidated(book)));
+  }
+
+  @Test
+  public void shouldSkipValidationAtPrePersistOnce() {
+    FastValidatorFactory factory = new FastValidatorFactory(Validation.buildDefaultValidatorFactory(), Book.class);
+    Map<String, Object> properties = Collections.singletonMap(FastValidatorFactory.VALIDATION_FACTORY, factory);
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+    EntityManager em = emf.createEntityManager();
+
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-2").nbOfPages(354);
+    try (ParallelValidationStage<Book> stage = new ParallelValidationStage<>(factory, (b, v) -> {
+    })) {
+      assertEquals(1, stage.validate(Collections.singletonList(book)).size());
+    }
+
+    em.getTransaction().begin();
+    em.persist(book);
+    em.getTransaction().commit();
+    assertNotNull(book.getId(), "Id should not be null");
+    assertFalse(factory.isPreValidated(book));
+
+    em.close();
+    emf.close();
+  }
+
+  @Test
+  public void shouldValidateAgainABookChangedSinceItsValidation() {
+    FastValidatorFactory factory = new FastValidatorFactory(Validation.buildDefaultValidatorFactory(), Book.class);
+    Map<String, Object> properties = Collections.singletonMap(FastValidatorFactory.VALIDATION_FACTORY, factory);
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+    EntityManager em = emf.createEntityManager();
+
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-2").nbOfPages(354);
+    try (ParallelValidationStage<Book> stage = new ParallelValidationStage<>(factory, (b, v) -> {
+    })) {
+      assertEquals(1, stage.validate(Collections.singletonList(book)).size());
+    }
+    assertTrue(factory.isPreValidated(book));
+    book.setTitle(null);
+    assertFalse(factory.isPreValidated(book));
+
+    assertThrows(RollbackException.class, () -> {
+      em.getTransaction().begin();
+      em.persist(book);
+      em.getTransaction().commit();
+    });
+
+    em.close();
+    emf.close();
+  }
+
+  @Test
+  public void shouldNotMarkBooksEqualToValidatedOnes() {
+    FastValidatorFactory factory = new FastValidatorFactory(Validation.buildDefaultValidatorFactory(), Book.class);
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-2").nbOfPages(354);
+    factory.markPreValidated(book);
+
+    assertTrue(factory.isPreValidated(book));
+    assertFalse(factory.isPreValidated(new Book().title("H2G2").price(12.5F).isbn("1-84023-2").nbOfPages(354)));
+  }
+}
@@ -2,8 +2,13 @@ package org.agoncal.fascicle.jpa.integrating.spring;
 
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
 
 /**
  * @author Antonio Goncalves
@@ -13,14 +18,19 @@ import javax.persistence.Id;
 // @formatter:off
 // tag::adocSnippet[]
 @Entity
+@EntityListeners(AddressCountListener.class)
 public class Address {
 
-  @Id @GeneratedValue
+  @Id @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "address_seq")
+  @SequenceGenerator(name = "address_seq", allocationSize = 50)
   private Long id;
+  @NotNull @Size(min = 1, max = 50)
   private String street1;
   private String street2;
+  @NotNull @Size(min = 1, max = 50)
   private String city;
   private String state;
+  @NotNull @Size(min = 1, max = 10)
   private String zipcode;
   private String country;
 
@@ -0,0 +1,113 @@
+package org.agoncal.fascicle.jpa.integrating.spring;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Reads addresses one at a time from a JSON array or an NDJSON stream, validates
+ * each of them and persists the valid ones in chunks, one transaction per chunk.
+ * Chunks are flushed as JDBC batches (see <code>hibernate.jdbc.batch_size</code>)
+ * and ids come from the pooled <code>address_seq</code> sequence.
+ */
+@Service
+public class AddressBulkLoader {
+
+  private final AddressRepository addressRepository;
+  private final ObjectMapper objectMapper;
+  private final Validator validator;
+  private final TransactionTemplate transactionTemplate;
+  private final int chunkSize;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public AddressBulkLoader(AddressRepository addressRepository, ObjectMapper objectMapper, Validator validator,
+                           PlatformTransactionManager transactionManager, @Value("${address.bulk.chunk-size:500}") int chunkSize) {
+    this.addressRepository = addressRepository;
+    this.objectMapper = objectMapper;
+    this.validator = validator;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.chunkSize = chunkSize;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public BulkResult load(InputStream json) throws IOException {
+    long start = System.nanoTime();
+    List<BulkResult.Record> records = new ArrayList<>();
+    List<Address> chunk = new ArrayList<>(chunkSize);
+    List<BulkResult.Record> chunkRecords = new ArrayList<>(chunkSize);
+
+    // A root level array is unwrapped, otherwise values are read as a sequence
+    try (MappingIterator<Address> addresses = objectMapper.readerFor(Address.class).readValues(json)) {
+      int index = 0;
+      while (true) {
+        Address address;
+        try {
+          if (!addresses.hasNextValue())
+            break;
+          address = addresses.nextValue();
+        } catch (IOException e) {
+          // The stream cannot be resumed after a syntax error
+          records.add(BulkResult.Record.rejected(index, e.getMessage()));
+          break;
+        }
+
+        BulkResult.Record record = validate(index++, address);
+        records.add(record);
+        if (record.getError() != null)
+          continue;
+
+        chunk.add(address);
+        chunkRecords.add(record);
+        if (chunk.size() == chunkSize)
+          persist(chunk, chunkRecords);
+      }
+    }
+    persist(chunk, chunkRecords);
+
+    return new BulkResult(records, System.nanoTime() - start);
+  }
+
+  private BulkResult.Record validate(int index, Address address) {
+    Set<ConstraintViolation<Address>> violations = validator.validate(address);
+    if (violations.isEmpty())
+      return BulkResult.Record.accepted(index);
+
+    return BulkResult.Record.rejected(index, violations.stream()
+      .map(v -> v.getPropertyPath() + " " + v.getMessage())
+      .collect(Collectors.joining(", ")));
+  }
+
+  private void persist(List<Address> chunk, List<BulkResult.Record> chunkRecords) {
+    if (chunk.isEmpty())
+      return;
+
+    try {
+      transactionTemplate.execute(status -> addressRepository.saveAll(chunk));
+      for (int i = 0; i < chunk.size(); i++)
+        chunkRecords.get(i).persisted(chunk.get(i).getId());
+    } catch (RuntimeException e) {
+      chunkRecords.forEach(r -> r.failed(e.getMessage()));
+    }
+
+    chunk.clear();
+    chunkRecords.clear();
+  }
+}
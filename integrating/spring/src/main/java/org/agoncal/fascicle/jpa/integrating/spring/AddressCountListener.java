@@ -0,0 +1,30 @@
+package org.agoncal.fascicle.jpa.integrating.spring;
+
+import org.springframework.context.annotation.Lazy;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+
+/**
+ * Entity listener instantiated by Spring through the Hibernate bean container.
+ * The counter is injected lazily as it depends on the repository, which in turn
+ * needs the entity manager factory this listener is registered in.
+ */
+public class AddressCountListener {
+
+  private final AddressCounter addressCounter;
+
+  public AddressCountListener(@Lazy AddressCounter addressCounter) {
+    this.addressCounter = addressCounter;
+  }
+
+  @PostPersist
+  public void addressPersisted(Address address) {
+    addressCounter.applyAfterCommit(1);
+  }
+
+  @PostRemove
+  public void addressRemoved(Address address) {
+    addressCounter.applyAfterCommit(-1);
+  }
+}
@@ -0,0 +1,87 @@
+package org.agoncal.fascicle.jpa.integrating.spring;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the number of addresses in memory so <code>/addresses/count</code> does
+ * not run a <code>SELECT COUNT(*)</code> on every request. The counter is
+ * initialised from the database, updated on committed inserts and deletes by
+ * the {@link AddressCountListener}, and reconciled with the database once it is
+ * older than <code>address.count.max-staleness</code> milliseconds.
+ */
+@Component
+public class AddressCounter {
+
+  private final AddressRepository addressRepository;
+  private final long maxStaleness;
+
+  private final AtomicLong count = new AtomicLong();
+  private volatile long lastReconciled;
+  private volatile boolean initialized;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public AddressCounter(AddressRepository addressRepository, @Value("${address.count.max-staleness:5000}") long maxStaleness) {
+    this.addressRepository = addressRepository;
+    this.maxStaleness = maxStaleness;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public long count() {
+    if (isStale())
+      reconcileIfStale();
+    return count.get();
+  }
+
+  public synchronized void reconcile() {
+    long now = System.currentTimeMillis();
+    count.set(addressRepository.count());
+    lastReconciled = now;
+    initialized = true;
+  }
+
+  /**
+   * Applies the delta once the current transaction commits, or straight away
+   * when there is no transaction (rolled back changes are never counted).
+   */
+  void applyAfterCommit(long delta) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      count.addAndGet(delta);
+      return;
+    }
+
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
+        count.addAndGet(delta);
+      }
+    });
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private boolean isStale() {
+    return !initialized || System.currentTimeMillis() - lastReconciled >= maxStaleness;
+  }
+
+  /**
+   * Threads that found the counter stale queue here, and only the first one
+   * counts the addresses: the others find it fresh once they get the lock.
+   */
+  private synchronized void reconcileIfStale() {
+    if (isStale())
+      reconcile();
+  }
+}
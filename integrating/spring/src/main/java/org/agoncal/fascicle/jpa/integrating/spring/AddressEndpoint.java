@@ -1,11 +1,14 @@
 package org.agoncal.fascicle.jpa.integrating.spring;
 
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 // tag::adocSnippet[]
@@ -13,10 +16,14 @@ import java.util.List;
 public class AddressEndpoint {
 
   private final AddressRepository addressRepository;
+  private final AddressCounter addressCounter;
+  private final AddressBulkLoader addressBulkLoader;
 
   // tag::adocSkip[]
-  public AddressEndpoint(AddressRepository addressRepository) {
+  public AddressEndpoint(AddressRepository addressRepository, AddressCounter addressCounter, AddressBulkLoader addressBulkLoader) {
     this.addressRepository = addressRepository;
+    this.addressCounter = addressCounter;
+    this.addressBulkLoader = addressBulkLoader;
   }
 
   // end::adocSkip[]
@@ -25,9 +32,14 @@ public class AddressEndpoint {
     return addressRepository.save(address);
   }
 
+  @PostMapping(value = "/addresses/bulk", consumes = {MediaType.APPLICATION_JSON_VALUE, "application/x-ndjson"})
+  public BulkResult createAddresses(InputStream addresses) throws IOException {
+    return addressBulkLoader.load(addresses);
+  }
+
   @GetMapping(value = "/addresses/count")
   public Long countAll() {
-    return addressRepository.count();
+    return addressCounter.count();
   }
 
   @GetMapping(value = "/addresses/country/{country}")
@@ -0,0 +1,94 @@
+package org.agoncal.fascicle.jpa.integrating.spring;
+
+import java.util.List;
+
+/**
+ * Outcome of a bulk load: one record per input address, in input order, and
+ * the overall throughput.
+ */
+public class BulkResult {
+
+  private final List<Record> records;
+  private final int persisted;
+  private final long elapsedMillis;
+  private final double rowsPerSecond;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public BulkResult(List<Record> records, long elapsedNanos) {
+    this.records = records;
+    this.persisted = (int) records.stream().filter(r -> r.getId() != null).count();
+    this.elapsedMillis = elapsedNanos / 1_000_000;
+    this.rowsPerSecond = elapsedNanos == 0 ? 0 : persisted * 1_000_000_000.0 / elapsedNanos;
+  }
+
+  // ======================================
+  // =          Getters & Setters         =
+  // ======================================
+
+  public List<Record> getRecords() {
+    return records;
+  }
+
+  public int getReceived() {
+    return records.size();
+  }
+
+  public int getPersisted() {
+    return persisted;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public double getRowsPerSecond() {
+    return rowsPerSecond;
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  public static class Record {
+
+    private final int index;
+    private Long id;
+    private String error;
+
+    private Record(int index, String error) {
+      this.index = index;
+      this.error = error;
+    }
+
+    static Record accepted(int index) {
+      return new Record(index, null);
+    }
+
+    static Record rejected(int index, String error) {
+      return new Record(index, error);
+    }
+
+    void persisted(Long id) {
+      this.id = id;
+    }
+
+    void failed(String error) {
+      this.error = error;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public Long getId() {
+      return id;
+    }
+
+    public String getError() {
+      return error;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.agoncal.fascicle.jpa.integrating.spring;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opt-in execution profile (<code>--spring.profiles.active=virtual-threads</code>,
+ * Java 21+) that serves every request, and therefore every repository call, on
+ * its own virtual thread instead of the Tomcat platform thread pool.
+ * <p>
+ * Virtual threads are cheap enough that thousands of them can ask for a JDBC
+ * connection at once. The Hikari pool already bounds them: surplus requests
+ * wait for a connection up to <code>connection-timeout</code>, so the pool
+ * size of the profile is the limit of the database work. Run with
+ * <code>-Djdk.tracePinnedThreads=short</code> (see the <code>virtual-threads</code>
+ * Maven profile) to report the places where <code>synchronized</code> blocks in
+ * the JDBC driver pin a carrier thread.
+ */
+@Configuration
+@Profile("virtual-threads")
+public class VirtualThreadsConfiguration {
+
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService virtualThreadExecutor() {
+    try {
+      // Looked up reflectively as the module still compiles for Java 8
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("The virtual-threads profile needs Java 21 or later", e);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("Cannot create the virtual thread executor", e);
+    }
+  }
+
+  @Bean
+  public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadTomcatCustomizer(ExecutorService virtualThreadExecutor) {
+    return factory -> factory.addConnectorCustomizers(connector -> {
+      ProtocolHandler handler = connector.getProtocolHandler();
+      if (!(handler instanceof AbstractProtocol))
+        throw new IllegalStateException("Cannot set the executor of " + handler.getClass().getName());
+      ((AbstractProtocol<?>) handler).setExecutor(virtualThreadExecutor);
+    });
+  }
+}
@@ -0,0 +1,106 @@
+package org.agoncal.fascicle.jpa.integrating.spring;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for the AddressCounter, with a staleness long enough for the
+ * counter to be maintained by committed inserts and deletes only.
+ *
+ * @see AddressCounter
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = JPASpringApplication.class, properties = "address.count.max-staleness=3600000")
+public class AddressCounterTest {
+
+  @Autowired
+  private AddressRepository addressRepository;
+
+  @Autowired
+  private AddressCounter addressCounter;
+
+  @Autowired
+  private TransactionTemplate transactionTemplate;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldCountCommittedInsertsAndDeletesOnly() {
+    addressCounter.reconcile();
+    long count = addressCounter.count();
+
+    Address address = addressRepository.save(new Address("Procession St", "Paris", "75015", "FR"));
+    assertEquals(count + 1, addressCounter.count());
+
+    transactionTemplate.execute(status -> {
+      addressRepository.save(new Address("Ritherdon Rd", "London", "8QE", "UK"));
+      status.setRollbackOnly();
+      return null;
+    });
+    assertEquals(count + 1, addressCounter.count());
+
+    // Not seen by the entity listener, so only counted once reconciled
+    jdbcTemplate.update("INSERT INTO Address (id, street1, city, zipcode, country) VALUES (-1, 'Coffey', 'Perth', '654F543', 'AU')");
+    assertEquals(count + 1, addressCounter.count());
+    addressCounter.reconcile();
+    assertEquals(count + 2, addressCounter.count());
+
+    addressRepository.delete(address);
+    jdbcTemplate.update("DELETE FROM Address WHERE id = -1");
+    assertEquals(count + 1, addressCounter.count());
+    addressCounter.reconcile();
+    assertEquals(count, addressCounter.count());
+  }
+
+  @Test
+  public void shouldCountTheAddressesOnceForConcurrentStaleReads() throws Exception {
+    AtomicInteger queries = new AtomicInteger();
+    AddressRepository repository = (AddressRepository) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{AddressRepository.class}, (proxy, method, args) -> {
+      if (!method.getName().equals("count"))
+        throw new UnsupportedOperationException(method.getName());
+      queries.incrementAndGet();
+      Thread.sleep(50);
+      return 7L;
+    });
+    AddressCounter counter = new AddressCounter(repository, 3600000);
+
+    int nbOfThreads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(nbOfThreads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Long>> counts = new ArrayList<>();
+    for (int i = 0; i < nbOfThreads; i++)
+      counts.add(executor.submit(() -> {
+        start.await();
+        return counter.count();
+      }));
+    start.countDown();
+    for (Future<Long> count : counts)
+      assertEquals(7L, count.get().longValue());
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+
+    assertEquals(1, queries.get());
+  }
+}
@@ -18,6 +18,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
 
+import static org.hamcrest.Matchers.startsWith;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
@@ -30,12 +31,19 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  * @see AddressEndpoint
  */
 @RunWith(SpringRunner.class)
-@SpringBootTest(classes = JPASpringApplication.class)
+// Test methods are rolled back so commit-driven counter updates never fire: always reconcile
+@SpringBootTest(classes = JPASpringApplication.class, properties = "address.count.max-staleness=0")
 public class AddressEndpointTest {
 
   @Autowired
   private AddressRepository addressRepository;
 
+  @Autowired
+  private AddressCounter addressCounter;
+
+  @Autowired
+  private AddressBulkLoader addressBulkLoader;
+
   private MockMvc mockAddressEndpoint;
 
   // ======================================
@@ -58,7 +66,7 @@ public class AddressEndpointTest {
   @Before
   public void setup() {
     MockitoAnnotations.initMocks(this);
-    final AddressEndpoint addressEndpoint = new AddressEndpoint(addressRepository);
+    final AddressEndpoint addressEndpoint = new AddressEndpoint(addressRepository, addressCounter, addressBulkLoader);
     this.mockAddressEndpoint = MockMvcBuilders.standaloneSetup(addressEndpoint).build();
 
     address01 = new Address("Procession St", "Paris", "75015", "FR");
@@ -115,6 +123,62 @@ public class AddressEndpointTest {
       .andExpect(content().string("8"));
   }
 
+  @Test
+  @Transactional
+  public void createAddresses() throws Exception {
+
+    Address address01 = new Address().street1("233 Spring Street").city("New York").zipcode("12345").country("USA");
+    Address address02 = new Address().street1("1 Ocean Drive").city("Miami").zipcode("33139").country("USA");
+
+    mockAddressEndpoint.perform(post("/addresses/bulk")
+      .contentType("application/json")
+      .content("[" + new String(convertObjectToJsonBytes(address01)) + "," + new String(convertObjectToJsonBytes(address02)) + "]"))
+      .andExpect(status().isOk())
+      .andExpect(jsonPath("$.received").value(2))
+      .andExpect(jsonPath("$.persisted").value(2))
+      .andExpect(jsonPath("$.records[0].id").isNumber());
+
+    mockAddressEndpoint.perform(post("/addresses/bulk")
+      .contentType("application/x-ndjson")
+      .content(new String(convertObjectToJsonBytes(address01)) + "\n" + new String(convertObjectToJsonBytes(address02)) + "\n{\"street1\": "))
+      .andExpect(status().isOk())
+      .andExpect(jsonPath("$.received").value(3))
+      .andExpect(jsonPath("$.persisted").value(2))
+      .andExpect(jsonPath("$.records[2].error").isNotEmpty());
+
+    mockAddressEndpoint.perform(get("/addresses/count"))
+      .andExpect(status().isOk())
+      .andExpect(content().string("11"));
+  }
+
+  @Test
+  @Transactional
+  public void rejectInvalidAddressesOnly() throws Exception {
+
+    Address valid01 = new Address().street1("233 Spring Street").city("New York").zipcode("12345").country("USA");
+    Address noCity = new Address().street1("1 Ocean Drive").zipcode("33139").country("USA");
+    Address longZipcode = new Address().street1("1 Ocean Drive").city("Miami").zipcode("33139-12345678").country("USA");
+    Address valid02 = new Address().street1("1 Ocean Drive").city("Miami").zipcode("33139").country("USA");
+
+    // All in the same chunk
+    mockAddressEndpoint.perform(post("/addresses/bulk")
+      .contentType("application/json")
+      .content("[" + new String(convertObjectToJsonBytes(valid01)) + "," + new String(convertObjectToJsonBytes(noCity)) + ","
+        + new String(convertObjectToJsonBytes(longZipcode)) + "," + new String(convertObjectToJsonBytes(valid02)) + "]"))
+      .andExpect(status().isOk())
+      .andExpect(jsonPath("$.received").value(4))
+      .andExpect(jsonPath("$.persisted").value(2))
+      .andExpect(jsonPath("$.records[0].id").isNumber())
+      .andExpect(jsonPath("$.records[1].id").doesNotExist())
+      .andExpect(jsonPath("$.records[1].error").value("city must not be null"))
+      .andExpect(jsonPath("$.records[2].error").value(startsWith("zipcode size must be between")))
+      .andExpect(jsonPath("$.records[3].id").isNumber());
+
+    mockAddressEndpoint.perform(get("/addresses/count"))
+      .andExpect(status().isOk())
+      .andExpect(content().string("9"));
+  }
+
   @Test
   @Transactional
   public void getAddressesByCountry() throws Exception {
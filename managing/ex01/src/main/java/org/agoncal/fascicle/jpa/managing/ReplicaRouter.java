@@ -0,0 +1,178 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends writes to the primary database and read-only work to a replica. Both
+ * are the same persistence unit, the replica with its own properties (at least
+ * another <code>javax.persistence.jdbc.url</code>) and no shared cache, so
+ * reads see what the replica holds. The schema of the replica is left as it
+ * is, whatever the schema generation of the unit.
+ * <p>
+ * A replica lags behind the primary. For a while after a caller commits writes
+ * on the primary, its reads still go to the primary so it reads its own writes.
+ * Callers are told apart by a token they give, such as the id of their HTTP
+ * session, so that their reads stick to the primary whatever the thread. Without
+ * a token, the caller is the thread asking for the entity manager. Commits that
+ * wrote nothing do not count.
+ * <p>
+ * Reads also fall back to the primary while the replica does not answer, which
+ * is checked in the background once per health check interval.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+  private static final String TOKEN = ReplicaRouter.class.getName() + ".token";
+
+  private final EntityManagerFactory primary;
+  private final EntityManagerFactory replica;
+  private final long stickinessMillis;
+  private final ConcurrentMap<Object, Long> lastCommits = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService healthCheck;
+  private volatile boolean replicaHealthy = true;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public ReplicaRouter(String unitName, Map<String, Object> replicaProperties) {
+    this(unitName, replicaProperties, 1000, 5000);
+  }
+
+  public ReplicaRouter(String unitName, Map<String, Object> replicaProperties, long stickinessMillis, long healthCheckMillis) {
+    Map<String, Object> properties = new HashMap<>(replicaProperties);
+    properties.put("eclipselink.session-name", unitName + "-replica");
+    properties.put("eclipselink.cache.shared.default", "false");
+    // The schema of the replica comes from replication, never from the unit
+    properties.put("javax.persistence.schema-generation.database.action", "none");
+    properties.put("javax.persistence.schema-generation.scripts.action", "none");
+    properties.remove("javax.persistence.schema-generation.scripts.create-target");
+    properties.remove("javax.persistence.schema-generation.scripts.drop-target");
+    this.primary = Persistence.createEntityManagerFactory(unitName);
+    this.replica = Persistence.createEntityManagerFactory(unitName, properties);
+    this.stickinessMillis = stickinessMillis;
+
+    // A replica that does not answer is failed over, not retried
+    JpaHelper.getServerSession(replica).getLogin().setQueryRetryAttemptCount(0);
+
+    // Only raised when the entity manager has written, its properties holding the token
+    JpaHelper.getServerSession(primary).getEventManager().addListener(new SessionEventAdapter() {
+      @Override
+      public void postCommitTransaction(SessionEvent event) {
+        Object token = event.getSession().getProperty(TOKEN);
+        if (token != null)
+          committed(token);
+      }
+    });
+
+    healthCheck = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "replica-health-check-" + unitName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    healthCheck.scheduleWithFixedDelay(() -> replicaHealthy = ping(), healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * @return an entity manager on the primary database, its writes sticking
+   * the reads of the current thread to the primary
+   */
+  public EntityManager forWrite() {
+    return forWrite(Thread.currentThread());
+  }
+
+  /**
+   * @param token the caller whose reads stick to the primary once written
+   * @return an entity manager on the primary database
+   */
+  public EntityManager forWrite(Object token) {
+    EntityManager em = primary.createEntityManager();
+    em.setProperty(TOKEN, token);
+    return em;
+  }
+
+  /**
+   * @return an entity manager on the replica, or on the primary if the
+   * current thread has just written or if the replica is down
+   */
+  public EntityManager forRead() {
+    return forRead(Thread.currentThread());
+  }
+
+  /**
+   * @param token the caller given when writing
+   * @return an entity manager on the replica, or on the primary if this
+   * caller has just written or if the replica is down
+   */
+  public EntityManager forRead(Object token) {
+    return readsFromReplica(token) ? replica.createEntityManager() : primary.createEntityManager();
+  }
+
+  public boolean readsFromReplica() {
+    return readsFromReplica(Thread.currentThread());
+  }
+
+  public boolean readsFromReplica(Object token) {
+    Long committed = lastCommits.get(token);
+    if (committed != null && System.currentTimeMillis() - committed < stickinessMillis)
+      return false;
+    return isReplicaHealthy();
+  }
+
+  /**
+   * @return whether the replica answered the last health check
+   */
+  public boolean isReplicaHealthy() {
+    return replicaHealthy;
+  }
+
+  @Override
+  public void close() {
+    healthCheck.shutdownNow();
+    replica.close();
+    primary.close();
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private void committed(Object token) {
+    long now = System.currentTimeMillis();
+    lastCommits.put(token, now);
+    // Callers no longer sticking are forgotten
+    lastCommits.values().removeIf(committed -> now - committed >= stickinessMillis);
+  }
+
+  private boolean ping() {
+    EntityManager em = replica.createEntityManager();
+    try {
+      em.createNativeQuery("SELECT 1").getSingleResult();
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    } finally {
+      em.close();
+    }
+  }
+}
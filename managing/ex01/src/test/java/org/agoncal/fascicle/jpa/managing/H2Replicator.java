@@ -0,0 +1,49 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stands in for database replication in tests: copies the whole primary H2
+ * database to the replica when asked to.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class H2Replicator {
+
+  private final String primaryUrl;
+  private final String replicaUrl;
+
+  public H2Replicator(String primaryUrl, String replicaUrl) {
+    this.primaryUrl = primaryUrl;
+    this.replicaUrl = replicaUrl;
+  }
+
+  public String getReplicaUrl() {
+    return replicaUrl;
+  }
+
+  public void replicate() throws Exception {
+    Path script = Files.createTempFile("replication", ".sql");
+    try (Connection primary = DriverManager.getConnection(primaryUrl);
+         Connection replica = DriverManager.getConnection(replicaUrl)) {
+      execute(primary, "SCRIPT TO '" + script + "'");
+      execute(replica, "DROP ALL OBJECTS");
+      execute(replica, "RUNSCRIPT FROM '" + script + "'");
+    } finally {
+      Files.delete(script);
+    }
+  }
+
+  private void execute(Connection connection, String sql) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute(sql);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.h2.tools.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Routes a primary in-memory database and a replica served over TCP, so that
+ * the replica can be stopped.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ReplicaRouterTest {
+
+  private static final long STICKINESS = 200;
+  private static final long HEALTH_CHECK = 50;
+
+  private Server replicaServer;
+  private ReplicaRouter router;
+  private H2Replicator replicator;
+
+  @BeforeEach
+  void init() throws Exception {
+    replicaServer = Server.createTcpServer("-tcpPort", "0").start();
+    String replicaUrl = "jdbc:h2:tcp://localhost:" + replicaServer.getPort() + "/mem:cdbookstoreReplicaDB";
+    Map<String, Object> replicaProperties = new HashMap<>();
+    replicaProperties.put("javax.persistence.jdbc.url", replicaUrl);
+    router = new ReplicaRouter("cdbookstorePU", replicaProperties, STICKINESS, HEALTH_CHECK);
+    replicator = new H2Replicator("jdbc:h2:mem:cdbookstoreDB", replicaUrl);
+    // The replica gets its schema from the primary
+    replicator.replicate();
+  }
+
+  @AfterEach
+  void close() {
+    router.close();
+    replicaServer.stop();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  void shouldReadItsOwnWritesFromThePrimary() throws Exception {
+    assertTrue(router.readsFromReplica());
+    Long id = createBook();
+
+    assertFalse(router.readsFromReplica());
+    assertNotNull(find(id));
+
+    Thread.sleep(STICKINESS + 50);
+    assertTrue(router.readsFromReplica());
+    assertNull(find(id), "The replica is not up to date yet");
+
+    replicator.replicate();
+    assertEquals("H2G2", find(id).getTitle());
+  }
+
+  @Test
+  void shouldFailOverToThePrimary() throws Exception {
+    Long id = createBook();
+    Thread.sleep(STICKINESS + 50);
+    assertTrue(router.readsFromReplica());
+
+    replicaServer.stop();
+    // Checked in the background
+    for (int i = 0; i < 40 && router.isReplicaHealthy(); i++)
+      Thread.sleep(HEALTH_CHECK);
+    assertFalse(router.isReplicaHealthy());
+    assertFalse(router.readsFromReplica());
+    assertNotNull(find(id));
+  }
+
+  @Test
+  void shouldStickTheReadsOfACallerWhateverTheThread() throws Exception {
+    EntityManager em = router.forWrite("alice");
+    em.getTransaction().begin();
+    em.persist(new Book().title("H2G2").price(12.5F).isbn("1-84023-742-2").nbOfPages(354));
+    em.getTransaction().commit();
+    em.close();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertFalse(executor.submit(() -> router.readsFromReplica("alice")).get());
+      assertTrue(executor.submit(() -> router.readsFromReplica("bob")).get());
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(router.readsFromReplica(), "This thread has not written as itself");
+  }
+
+  @Test
+  void shouldNotStickAfterCommittingNoWrite() throws Exception {
+    EntityManager em = router.forWrite();
+    em.getTransaction().begin();
+    em.createQuery("SELECT b FROM Book b").getResultList();
+    em.getTransaction().commit();
+    em.close();
+
+    assertTrue(router.readsFromReplica());
+  }
+
+  @Test
+  void shouldLeaveTheSchemaOfTheReplicaAsItIs() throws Exception {
+    Long id = createBook();
+    replicator.replicate();
+    Thread.sleep(STICKINESS + 50);
+    assertNotNull(find(id));
+
+    // Keeps the in-memory replica open while no router is
+    try (Connection replica = DriverManager.getConnection(replicator.getReplicaUrl())) {
+      router.close();
+      router = new ReplicaRouter("cdbookstorePU", Collections.singletonMap("javax.persistence.jdbc.url", replicator.getReplicaUrl()), STICKINESS, HEALTH_CHECK);
+    }
+    assertTrue(router.readsFromReplica());
+    assertEquals("H2G2", find(id).getTitle());
+  }
+
+  private Long createBook() {
+    EntityManager em = router.forWrite();
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-742-2").nbOfPages(354);
+    em.getTransaction().begin();
+    em.persist(book);
+    em.getTransaction().commit();
+    em.close();
+    return book.getId();
+  }
+
+  private Book find(Long id) {
+    EntityManager em = router.forRead();
+    try {
+      return em.find(Book.class, id);
+    } finally {
+      em.close();
+    }
+  }
+}
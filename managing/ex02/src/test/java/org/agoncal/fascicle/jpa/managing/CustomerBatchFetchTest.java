@@ -0,0 +1,76 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the addresses of a page of customers are loaded with one
+ * <code>SELECT ... WHERE ID IN (...)</code> per batch of 50, not one
+ * <code>SELECT</code> per customer.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class CustomerBatchFetchTest {
+
+  private static final int NB_OF_CUSTOMERS = 120;
+
+  private static EntityManagerFactory emf;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", StatementCounter.properties());
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldLoadAddressesInBatches() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    em.getTransaction().begin();
+    for (int i = 0; i < NB_OF_CUSTOMERS; i++) {
+      Customer customer = new Customer("Anthony", "Batch", "batch" + i + "@mail.com");
+      Address address = new Address("Ritherdon Rd " + i, "London", "8QE", "UK");
+      customer.setAddress(address);
+      em.persist(customer);
+      em.persist(address);
+    }
+    em.getTransaction().commit();
+    em.clear();
+    emf.getCache().evictAll();
+
+    StatementCounter.reset();
+    List<Customer> customers = em.createQuery("SELECT c FROM Customer c WHERE c.lastName = 'Batch'", Customer.class).getResultList();
+    assertEquals(NB_OF_CUSTOMERS, customers.size());
+    for (Customer customer : customers)
+      assertNotNull(customer.getAddress().getCity());
+
+    // One query for the customers, then at most one per batch of 50 addresses
+    // (without weaving the association is fetched with the page, in one batch)
+    long selects = StatementCounter.count("SELECT");
+    assertTrue(selects >= 2 && selects <= 1 + (NB_OF_CUSTOMERS + 49) / 50, "Statements: " + selects);
+    em.close();
+  }
+}
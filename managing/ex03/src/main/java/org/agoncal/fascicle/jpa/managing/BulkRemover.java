@@ -0,0 +1,238 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.ForeignReferenceMapping;
+import org.eclipse.persistence.mappings.ObjectReferenceMapping;
+import org.eclipse.persistence.mappings.OneToManyMapping;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.UnitOfWork;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes entities with set-based <code>DELETE</code> statements, cascading
+ * to the entities their mappings remove with them (<code>CascadeType.REMOVE</code>
+ * or <code>orphanRemoval</code>), instead of loading each entity and deleting
+ * it row by row.
+ * <p>
+ * The entities are removed by chunks of ids. For each chunk, the ids of the
+ * cascaded entities are selected with one query per mapping, then the tables
+ * are deleted in the order of their foreign keys: entities referencing the
+ * chunk first, the chunk, then the entities it references. Removed entities
+ * are detached from the entity manager, and evicted from the second-level
+ * cache once the transaction commits.
+ * <p>
+ * Cascades through one-to-one, many-to-one and mapped one-to-many
+ * associations are followed. No lifecycle callback is invoked.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class BulkRemover {
+
+  private final EntityManager em;
+  private final int chunkSize;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  /**
+   * @param em an entity manager, its transaction being active when removing
+   */
+  public BulkRemover(EntityManager em) {
+    this(em, 250);
+  }
+
+  /**
+   * @param chunkSize the number of entities removed by each statement
+   */
+  public BulkRemover(EntityManager em, int chunkSize) {
+    this.em = em;
+    this.chunkSize = chunkSize;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * @return the number of entities of the given type removed, cascaded
+   * entities not included
+   */
+  public long removeAll(Class<?> entity, Collection<?> ids) {
+    ClassDescriptor descriptor = descriptorOf(entity);
+    List<Object> all = new ArrayList<>(ids);
+    long removed = 0;
+    for (int from = 0; from < all.size(); from += chunkSize)
+      removed += remove(descriptor, all.subList(from, Math.min(from + chunkSize, all.size())));
+    return removed;
+  }
+
+  /**
+   * Removes the entities matching a JPQL condition on <code>e</code>, such as
+   * <code>e.lastName = :lastName</code>.
+   *
+   * @return the number of entities of the given type removed, cascaded
+   * entities not included
+   */
+  public long removeWhere(Class<?> entity, String condition, Map<String, ?> parameters) {
+    ClassDescriptor descriptor = descriptorOf(entity);
+    String id = idOf(descriptor);
+    // Chunks are read in the order of the ids, each one after the previous
+    String first = "SELECT e." + id + " FROM " + descriptor.getAlias() + " e WHERE (" + condition + ") ORDER BY e." + id;
+    String next = "SELECT e." + id + " FROM " + descriptor.getAlias() + " e WHERE (" + condition + ") AND e." + id + " > :lastId ORDER BY e." + id;
+    long removed = 0;
+    for (List<?> chunk = chunk(first, parameters, null); !chunk.isEmpty(); chunk = chunk(next, parameters, chunk.get(chunk.size() - 1)))
+      removed += remove(descriptor, chunk);
+    return removed;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private long remove(ClassDescriptor descriptor, List<?> ids) {
+    if (ids.isEmpty())
+      return 0;
+    String id = idOf(descriptor);
+
+    // Entities holding a foreign key to the chunk
+    for (ForeignReferenceMapping mapping : cascadedMappings(descriptor))
+      if (!isForeignKeyOnSource(mapping)) {
+        ClassDescriptor target = mapping.getReferenceDescriptor();
+        List<?> targetIds = em.createQuery("SELECT t." + idOf(target) + " FROM " + target.getAlias() + " t WHERE t." +
+          mapping.getRelationshipPartnerAttributeName() + "." + id + " IN :ids")
+          .setParameter("ids", ids)
+          .getResultList();
+        remove(target, targetIds);
+      }
+
+    // Entities the chunk holds a foreign key to, only known before the chunk is removed
+    Map<ForeignReferenceMapping, List<?>> referenced = new LinkedHashMap<>();
+    for (ForeignReferenceMapping mapping : cascadedMappings(descriptor))
+      if (isForeignKeyOnSource(mapping))
+        referenced.put(mapping, em.createQuery("SELECT e." + mapping.getAttributeName() + "." + idOf(mapping.getReferenceDescriptor()) +
+          " FROM " + descriptor.getAlias() + " e WHERE e." + id + " IN :ids")
+          .setParameter("ids", ids)
+          .getResultList());
+
+    int removed = em.createQuery("DELETE FROM " + descriptor.getAlias() + " e WHERE e." + id + " IN :ids")
+      .setParameter("ids", ids)
+      .executeUpdate();
+    evict(descriptor.getJavaClass(), ids);
+
+    referenced.forEach((mapping, targetIds) -> remove(mapping.getReferenceDescriptor(), targetIds));
+    return removed;
+  }
+
+  private List<?> chunk(String jpql, Map<String, ?> parameters, Object lastId) {
+    Query query = em.createQuery(jpql).setMaxResults(chunkSize);
+    parameters.forEach(query::setParameter);
+    if (lastId != null)
+      query.setParameter("lastId", lastId);
+    return query.getResultList();
+  }
+
+  private ClassDescriptor descriptorOf(Class<?> entity) {
+    ClassDescriptor descriptor = JpaHelper.getEntityManager(em).getServerSession().getDescriptor(entity);
+    if (descriptor == null)
+      throw new IllegalArgumentException(entity.getName() + " is not an entity");
+    return descriptor;
+  }
+
+  private String idOf(ClassDescriptor descriptor) {
+    List<DatabaseMapping> ids = descriptor.getObjectBuilder().getPrimaryKeyMappings();
+    if (ids.size() != 1)
+      throw new IllegalArgumentException(descriptor.getAlias() + " does not have a single id attribute");
+    return ids.get(0).getAttributeName();
+  }
+
+  private List<ForeignReferenceMapping> cascadedMappings(ClassDescriptor descriptor) {
+    List<ForeignReferenceMapping> cascaded = new ArrayList<>();
+    for (DatabaseMapping mapping : descriptor.getMappings()) {
+      if (!mapping.isForeignReferenceMapping())
+        continue;
+      ForeignReferenceMapping reference = (ForeignReferenceMapping) mapping;
+      if (!reference.isCascadeRemove() && !reference.isPrivateOwned())
+        continue;
+      if (!(reference instanceof ObjectReferenceMapping || reference instanceof OneToManyMapping) ||
+        (!isForeignKeyOnSource(reference) && reference.getRelationshipPartnerAttributeName() == null))
+        throw new IllegalArgumentException("Cannot remove " + descriptor.getAlias() + "." + reference.getAttributeName() + " in bulk");
+      cascaded.add(reference);
+    }
+    return cascaded;
+  }
+
+  private boolean isForeignKeyOnSource(ForeignReferenceMapping mapping) {
+    return mapping instanceof ObjectReferenceMapping && ((ObjectReferenceMapping) mapping).isForeignKeyRelationship();
+  }
+
+  /**
+   * Detaches the removed entities now, and evicts them from the shared cache
+   * once committed, so that other transactions keep reading them until then.
+   */
+  private void evict(Class<?> entity, List<?> ids) {
+    UnitOfWork uow = em.unwrap(UnitOfWork.class);
+    for (Object id : ids) {
+      Object managed = uow.getIdentityMapAccessor().getFromIdentityMap(id, entity);
+      if (managed != null && em.contains(managed))
+        em.detach(managed);
+    }
+    Eviction eviction = null;
+    for (Object each : uow.getEventManager().getListeners())
+      if (each instanceof Eviction)
+        eviction = (Eviction) each;
+    if (eviction == null) {
+      eviction = new Eviction(em.getEntityManagerFactory().getCache());
+      uow.getEventManager().addListener(eviction);
+    }
+    eviction.add(entity, ids);
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  private static class Eviction extends SessionEventAdapter {
+
+    private final Cache cache;
+    private final Map<Class<?>, List<Object>> ids = new LinkedHashMap<>();
+
+    Eviction(Cache cache) {
+      this.cache = cache;
+    }
+
+    void add(Class<?> entity, List<?> ids) {
+      this.ids.computeIfAbsent(entity, key -> new ArrayList<>()).addAll(ids);
+    }
+
+    @Override
+    public void postCommitUnitOfWork(SessionEvent event) {
+      ids.forEach((entity, removed) -> removed.forEach(id -> cache.evict(entity, id)));
+      ids.clear();
+    }
+
+    // Not left to the release of the unit of work, which may outlive the transaction
+    @Override
+    public void postRollbackTransaction(SessionEvent event) {
+      ids.clear();
+    }
+
+    @Override
+    public void postReleaseUnitOfWork(SessionEvent event) {
+      ids.clear();
+    }
+  }
+}
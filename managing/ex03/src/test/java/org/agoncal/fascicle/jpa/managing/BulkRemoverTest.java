@@ -0,0 +1,77 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class BulkRemoverTest extends AbstractPersistentTest {
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldRemoveCustomersAndTheirAddressOrphans() throws Exception {
+    List<Customer> customers = new ArrayList<>();
+    tx.begin();
+    for (int i = 0; i < 1500; i++) {
+      Customer customer = new Customer("Anthony", "Balla", "tballa" + i + "@mail.com");
+      Address address = new Address("Ritherdon Rd " + i, "London", "8QE", "UK");
+      customer.setAddress(address);
+      em.persist(customer);
+      em.persist(address);
+      customers.add(customer);
+    }
+    Customer kept = customers.remove(0);
+    tx.commit();
+
+    List<Long> ids = new ArrayList<>();
+    customers.forEach(customer -> ids.add(customer.getId()));
+    tx.begin();
+    assertEquals(customers.size(), new BulkRemover(em).removeAll(Customer.class, ids));
+    tx.commit();
+
+    // Customers are not in the database, nor their addresses
+    for (Customer customer : customers) {
+      assertNull(em.find(Customer.class, customer.getId()));
+      assertNull(em.find(Address.class, customer.getAddress().getId()));
+    }
+    assertNotNull(em.find(Address.class, kept.getAddress().getId()));
+  }
+
+  @Test
+  public void shouldNotEvictRolledBackRemovals() throws Exception {
+    Customer rolledBack = new Customer("Vincent", "Uscalla", "vuscalla@mail.com");
+    Customer committed = new Customer("Sebastian", "Twenty", "stwenty@mail.com");
+    tx.begin();
+    em.persist(rolledBack);
+    em.persist(committed);
+    tx.commit();
+    em.clear();
+
+    tx.begin();
+    new BulkRemover(em).removeAll(Customer.class, Collections.singleton(rolledBack.getId()));
+    tx.rollback();
+
+    tx.begin();
+    new BulkRemover(em).removeAll(Customer.class, Collections.singleton(committed.getId()));
+    tx.commit();
+
+    assertTrue(emf.getCache().contains(Customer.class, rolledBack.getId()));
+    assertFalse(emf.getCache().contains(Customer.class, committed.getId()));
+    assertNotNull(em.find(Customer.class, rolledBack.getId()));
+  }
+}
@@ -1,5 +1,8 @@
 package org.agoncal.fascicle.jpa.managing;
 
+import org.eclipse.persistence.annotations.BatchFetch;
+import org.eclipse.persistence.annotations.BatchFetchType;
+
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
@@ -27,6 +30,7 @@ public class Customer {
   private String email;
   @OneToOne(fetch = LAZY, cascade = {PERSIST, REMOVE})
   @JoinColumn(name = "address_fk")
+  @BatchFetch(value = BatchFetchType.IN, size = 50)
   private Address address;
 
   // Constructors, getters, setters
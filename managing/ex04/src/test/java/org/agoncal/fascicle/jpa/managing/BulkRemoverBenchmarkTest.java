@@ -0,0 +1,114 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Times the removal of customers and their addresses with the bulk remover,
+ * and with <code>em.remove</code> on each loaded customer. Only runs when the
+ * number of customers is given:
+ * <pre>
+ * mvn test -Dtest=BulkRemoverBenchmarkTest -Dbenchmark.customers=1000000
+ * </pre>
+ * As <code>em.remove</code> takes hours on a million customers, it is timed on
+ * a sample of at most 50,000 customers, set with <code>-Dbenchmark.sample</code>.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+@EnabledIfSystemProperty(named = "benchmark.customers", matches = "[0-9]+")
+public class BulkRemoverBenchmarkTest {
+
+  private static final int NB_OF_CUSTOMERS = Integer.getInteger("benchmark.customers", 0);
+  private static final int NB_OF_SAMPLES = Integer.getInteger("benchmark.sample", Math.min(NB_OF_CUSTOMERS, 50_000));
+  private static final int BATCH_SIZE = 10_000;
+
+  private static EntityManagerFactory emf;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    Map<String, Object> properties = new HashMap<>();
+    // A database of its own, not dropped by the other tests deploying the unit
+    properties.put("eclipselink.session-name", "bulkRemoverBenchmark");
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:bulkRemoverBenchmarkDB");
+    properties.put("javax.persistence.schema-generation.scripts.action", "none");
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldRemoveCustomersInBulk() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    persist(em, "Bulk", NB_OF_CUSTOMERS);
+
+    long start = System.nanoTime();
+    em.getTransaction().begin();
+    long removed = new BulkRemover(em).removeWhere(Customer.class, "e.lastName = :lastName", Collections.singletonMap("lastName", "Bulk"));
+    em.getTransaction().commit();
+    report("BulkRemover", removed, System.nanoTime() - start);
+
+    assertEquals(NB_OF_CUSTOMERS, removed);
+    em.close();
+  }
+
+  @Test
+  public void shouldRemoveCustomersOneByOne() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    persist(em, "OneByOne", NB_OF_SAMPLES);
+
+    long start = System.nanoTime();
+    em.getTransaction().begin();
+    List<Customer> customers = em.createQuery("SELECT c FROM Customer c WHERE c.lastName = 'OneByOne'", Customer.class).getResultList();
+    customers.forEach(em::remove);
+    em.getTransaction().commit();
+    report("em.remove", customers.size(), System.nanoTime() - start);
+
+    assertEquals(NB_OF_SAMPLES, customers.size());
+    em.close();
+  }
+
+  private static void persist(EntityManager em, String lastName, int count) {
+    for (int from = 0; from < count; from += BATCH_SIZE) {
+      em.getTransaction().begin();
+      for (int i = from; i < Math.min(from + BATCH_SIZE, count); i++) {
+        Customer customer = new Customer("Anthony", lastName, "bulk" + i + "@mail.com");
+        customer.setAddress(new Address(lastName + " St " + i, "London", "8QE", "UK"));
+        em.persist(customer);
+      }
+      em.getTransaction().commit();
+      em.clear();
+    }
+    emf.getCache().evictAll();
+  }
+
+  private static void report(String remover, long removed, long nanos) {
+    long millis = nanos / 1_000_000;
+    System.out.printf("%s removed %,d customers and their addresses in %,d ms (%,.0f customers/s)%n",
+      remover, removed, millis, removed * 1000.0 / Math.max(millis, 1));
+  }
+}
@@ -0,0 +1,117 @@
+package org.agoncal.fascicle.jpa.managing;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that customers and their addresses are removed with a few
+ * <code>DELETE ... WHERE ID IN (...)</code> per chunk of 250 customers, not
+ * two <code>DELETE</code> per customer.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class BulkRemoverTest {
+
+  private static final int NB_OF_CUSTOMERS = 2500;
+
+  private static EntityManagerFactory emf;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", StatementCounter.properties());
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldRemoveCustomersAndCascadeToTheirAddresses() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    em.getTransaction().begin();
+    for (int i = 0; i < NB_OF_CUSTOMERS; i++)
+      em.persist(customer("Bulk", i));
+    Customer kept = customer("Kept", 0);
+    em.persist(kept);
+    em.getTransaction().commit();
+    Customer managed = em.createQuery("SELECT c FROM Customer c WHERE c.lastName = 'Bulk'", Customer.class).setMaxResults(1).getSingleResult();
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    long removed = new BulkRemover(em).removeWhere(Customer.class, "e.lastName = :lastName", Collections.singletonMap("lastName", "Bulk"));
+    em.getTransaction().commit();
+
+    assertEquals(NB_OF_CUSTOMERS, removed);
+    // One DELETE for the customers and one for their addresses, per chunk
+    assertEquals(2 * 10, StatementCounter.count("DELETE"));
+    assertFalse(em.contains(managed));
+    assertEquals(0L, em.createQuery("SELECT COUNT(c) FROM Customer c WHERE c.lastName = 'Bulk'").getSingleResult());
+    assertEquals(0L, em.createQuery("SELECT COUNT(a) FROM Address a WHERE a.street1 LIKE 'Bulk St %'").getSingleResult());
+    assertNotNull(em.find(Address.class, kept.getAddress().getId()));
+
+    em.getTransaction().begin();
+    new BulkRemover(em).removeAll(Customer.class, Collections.singleton(kept.getId()));
+    em.getTransaction().commit();
+    em.close();
+  }
+
+  @Test
+  public void shouldEvictRemovedCustomersOnceCommitted() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    Customer rolledBack = customer("Evicted", 1);
+    Customer committed = customer("Evicted", 2);
+    em.getTransaction().begin();
+    em.persist(rolledBack);
+    em.persist(committed);
+    em.getTransaction().commit();
+    em.clear();
+    assertTrue(emf.getCache().contains(Customer.class, committed.getId()));
+
+    em.getTransaction().begin();
+    new BulkRemover(em).removeAll(Customer.class, Collections.singleton(rolledBack.getId()));
+    em.getTransaction().rollback();
+    assertTrue(emf.getCache().contains(Customer.class, rolledBack.getId()));
+
+    em.getTransaction().begin();
+    new BulkRemover(em).removeAll(Customer.class, Collections.singleton(committed.getId()));
+    assertTrue(emf.getCache().contains(Customer.class, committed.getId()));
+    em.getTransaction().commit();
+
+    // The rolled back removal is not evicted by the next commit
+    assertTrue(emf.getCache().contains(Customer.class, rolledBack.getId()));
+    assertFalse(emf.getCache().contains(Customer.class, committed.getId()));
+    assertFalse(emf.getCache().contains(Address.class, committed.getAddress().getId()));
+    assertNull(em.find(Customer.class, committed.getId()));
+    assertNotNull(em.find(Customer.class, rolledBack.getId()));
+    em.close();
+  }
+
+  private static Customer customer(String lastName, int i) {
+    Customer customer = new Customer("Anthony", lastName, "bulk" + i + "@mail.com");
+    customer.setAddress(new Address(lastName + " St " + i, "London", "8QE", "UK"));
+    return customer;
+  }
+}
@@ -0,0 +1,203 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.helper.DatabaseField;
+import org.eclipse.persistence.internal.helper.DatabaseTable;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.foundation.AbstractDirectMapping;
+import org.eclipse.persistence.sessions.Session;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads an address with only some of its attributes. The SQL only joins the
+ * secondary tables holding the requested attributes, where a find or a JPQL
+ * query always joins <code>t_city</code> and <code>t_country</code>, even to
+ * read the street. The other tables are read on first access to one of their
+ * attributes, so the entity manager must stay open while the address is used.
+ * <p>
+ * Partial addresses are read-only views of the address, not entities: they
+ * cannot be merged, persisted or cached, and an address found by the entity
+ * manager is never one of them.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class AddressLoader {
+
+  private final EntityManager em;
+  private final Session session;
+  private final ClassDescriptor descriptor;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public AddressLoader(EntityManager em) {
+    this.em = em;
+    this.session = em.unwrap(JpaEntityManager.class).getServerSession();
+    this.descriptor = session.getDescriptor(Address.class);
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Finds an address reading the primary table and the tables of the given
+   * attributes only.
+   *
+   * @return the address, or null if there is none with this id
+   */
+  public PartialAddress find(Long id, String... attributes) {
+    Set<DatabaseTable> tables = new HashSet<>();
+    tables.add(descriptor.getDefaultTable());
+    for (String attribute : attributes)
+      tables.add(tableOf(attribute));
+
+    PartialAddress address = new PartialAddress(this, id);
+    return load(address, tables) ? address : null;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private DatabaseTable tableOf(String attribute) {
+    DatabaseMapping mapping = descriptor.getMappingForAttributeName(attribute);
+    if (!(mapping instanceof AbstractDirectMapping))
+      throw new IllegalArgumentException("Not a basic attribute of Address: " + attribute);
+    return mapping.getField().getTable();
+  }
+
+  private boolean load(PartialAddress address, Set<DatabaseTable> tables) {
+    List<DatabaseTable> joined = new ArrayList<>();
+    for (DatabaseTable table : descriptor.getTables())
+      if (tables.contains(table) && !address.loadedTables.contains(table))
+        joined.add(table);
+    if (joined.isEmpty())
+      return true;
+
+    List<AbstractDirectMapping> mappings = new ArrayList<>();
+    for (DatabaseMapping mapping : descriptor.getMappings())
+      if (mapping instanceof AbstractDirectMapping && !mapping.isPrimaryKeyMapping() && joined.contains(mapping.getField().getTable()))
+        mappings.add((AbstractDirectMapping) mapping);
+
+    List<?> rows = em.createNativeQuery(selectSql(joined, mappings)).setParameter(1, address.id).getResultList();
+    if (rows.isEmpty())
+      return false;
+
+    Object[] values = mappings.size() == 1 ? new Object[]{rows.get(0)} : (Object[]) rows.get(0);
+    for (int i = 0; i < mappings.size(); i++) {
+      AbstractDirectMapping mapping = mappings.get(i);
+      address.values.put(mapping.getAttributeName(), mapping.getObjectValue(values[i], session));
+    }
+    address.loadedTables.addAll(joined);
+    return true;
+  }
+
+  /**
+   * The first table drives the query, the others are joined on their primary
+   * key columns.
+   */
+  private String selectSql(List<DatabaseTable> tables, Collection<AbstractDirectMapping> mappings) {
+    StringBuilder sql = new StringBuilder("SELECT ");
+    if (mappings.isEmpty())
+      sql.append(alias(tables, tables.get(0))).append('.').append(primaryKeyOf(tables.get(0)).getName());
+    String separator = "";
+    for (AbstractDirectMapping mapping : mappings) {
+      sql.append(separator).append(alias(tables, mapping.getField().getTable())).append('.').append(mapping.getField().getName());
+      separator = ", ";
+    }
+
+    DatabaseField driving = primaryKeyOf(tables.get(0));
+    sql.append(" FROM ").append(tables.get(0).getQualifiedName()).append(" t0");
+    for (int i = 1; i < tables.size(); i++) {
+      sql.append(" JOIN ").append(tables.get(i).getQualifiedName()).append(" t").append(i);
+      sql.append(" ON t").append(i).append('.').append(primaryKeyOf(tables.get(i)).getName());
+      sql.append(" = t0.").append(driving.getName());
+    }
+    return sql.append(" WHERE t0.").append(driving.getName()).append(" = ?").toString();
+  }
+
+  private String alias(List<DatabaseTable> tables, DatabaseTable table) {
+    return "t" + tables.indexOf(table);
+  }
+
+  private DatabaseField primaryKeyOf(DatabaseTable table) {
+    DatabaseField primaryKey = descriptor.getPrimaryKeyFields().get(0);
+    if (table.equals(descriptor.getDefaultTable()))
+      return primaryKey;
+    Map<DatabaseField, DatabaseField> joinColumns = descriptor.getAdditionalTablePrimaryKeyFields().get(table);
+    return joinColumns.get(primaryKey);
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  /**
+   * Read-only view of an address, reading the tables it was not loaded with
+   * on first access to one of their attributes.
+   */
+  public static class PartialAddress {
+
+    private final AddressLoader loader;
+    private final Long id;
+    private final Map<String, Object> values = new HashMap<>();
+    private final Set<DatabaseTable> loadedTables = new HashSet<>();
+
+    PartialAddress(AddressLoader loader, Long id) {
+      this.loader = loader;
+      this.id = id;
+    }
+
+    boolean isLoaded(String attribute) {
+      return loadedTables.contains(loader.tableOf(attribute));
+    }
+
+    private Object get(String attribute) {
+      Set<DatabaseTable> tables = new HashSet<>();
+      tables.add(loader.tableOf(attribute));
+      loader.load(this, tables);
+      return values.get(attribute);
+    }
+
+    public Long getId() {
+      return id;
+    }
+
+    public String getStreet1() {
+      return (String) get("street1");
+    }
+
+    public String getStreet2() {
+      return (String) get("street2");
+    }
+
+    public String getCity() {
+      return (String) get("city");
+    }
+
+    public String getState() {
+      return (String) get("state");
+    }
+
+    public String getZipcode() {
+      return (String) get("zipcode");
+    }
+
+    public String getCountry() {
+      return (String) get("country");
+    }
+  }
+}
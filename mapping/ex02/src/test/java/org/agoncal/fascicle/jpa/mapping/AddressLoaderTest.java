@@ -0,0 +1,128 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the SQL of a full and of a partial load of addresses.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class AddressLoaderTest {
+
+  private static final int NB_OF_ADDRESSES = 100;
+
+  private static EntityManagerFactory emf;
+  private EntityManager em;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", StatementCounter.properties());
+    EntityManager em = emf.createEntityManager();
+    em.getTransaction().begin();
+    for (long id = 1; id <= NB_OF_ADDRESSES; id++)
+      em.persist(new Address(id, "Street " + id, "At James place", "London", "LDN", "7QE554", "UK"));
+    em.getTransaction().commit();
+    em.close();
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  @BeforeEach
+  public void initEntityManager() {
+    emf.getCache().evictAll();
+    em = emf.createEntityManager();
+    StatementCounter.reset();
+  }
+
+  @AfterEach
+  public void closeEntityManager() {
+    em.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldJoinAllTablesOnAFullLoad() throws Exception {
+    for (long id = 1; id <= NB_OF_ADDRESSES; id++)
+      assertEquals("Street " + id, em.find(Address.class, id).getStreet1());
+
+    assertEquals(NB_OF_ADDRESSES, StatementCounter.count("SELECT"));
+    assertTrue(StatementCounter.statements().stream().allMatch(sql -> sql.contains("t_city") && sql.contains("t_country")));
+  }
+
+  @Test
+  public void shouldOnlyReadThePrimaryTableOnAPartialLoad() throws Exception {
+    AddressLoader loader = new AddressLoader(em);
+    for (long id = 1; id <= NB_OF_ADDRESSES; id++)
+      assertEquals("Street " + id, loader.find(id).getStreet1());
+
+    assertEquals(NB_OF_ADDRESSES, StatementCounter.count("SELECT"));
+    assertTrue(StatementCounter.statements().stream().noneMatch(sql -> sql.contains("t_city") || sql.contains("t_country")));
+  }
+
+  @Test
+  public void shouldOnlyJoinTheRequestedTables() throws Exception {
+    AddressLoader.PartialAddress address = new AddressLoader(em).find(1L, "zipcode");
+
+    assertEquals(1, StatementCounter.count());
+    String sql = StatementCounter.statements().get(0);
+    assertTrue(sql.contains("t_city"));
+    assertFalse(sql.contains("t_country"));
+    assertEquals("London", address.getCity());
+    assertEquals(1, StatementCounter.count());
+  }
+
+  @Test
+  public void shouldLoadOtherTablesOnFirstAccess() throws Exception {
+    AddressLoader.PartialAddress address = new AddressLoader(em).find(1L);
+    assertFalse(address.isLoaded("country"));
+
+    assertEquals("UK", address.getCountry());
+    assertTrue(address.isLoaded("country"));
+    assertFalse(address.isLoaded("city"));
+    assertEquals(2, StatementCounter.count());
+
+    assertEquals("London", address.getCity());
+    assertEquals("LDN", address.getState());
+    assertEquals(3, StatementCounter.count());
+  }
+
+  @Test
+  public void shouldLeaveTheAddressesFoundByTheEntityManagerAlone() throws Exception {
+    AddressLoader.PartialAddress partial = new AddressLoader(em).find(1L, "city");
+    Address address = em.find(Address.class, 1L);
+
+    assertEquals(Address.class, address.getClass());
+    assertEquals(partial.getCity(), address.getCity());
+    assertEquals(partial.getCountry(), address.getCountry());
+  }
+
+  @Test
+  public void shouldNotFindAnUnknownAddress() throws Exception {
+    assertNull(new AddressLoader(em).find(-1L, "city"));
+  }
+}
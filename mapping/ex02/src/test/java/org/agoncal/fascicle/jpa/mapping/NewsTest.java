@@ -4,6 +4,8 @@ package org.agoncal.fascicle.jpa.mapping;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  * @author Antonio Goncalves
@@ -29,4 +31,22 @@ public class NewsTest extends AbstractPersistentTest {
 
     assertEquals("The keyboard of Pink Floyd has died today", news.getContent());
   }
+
+  @Test
+  public void shouldFindANewsByAnEqualId() throws Exception {
+
+    News news = new News(new NewsId("Syd Barrett has died", "EN"), "The first singer of Pink Floyd has died today");
+    tx.begin();
+    em.persist(news);
+    tx.commit();
+
+    NewsId id = new NewsId(new String("Syd Barrett has died"), "EN");
+    assertEquals(new NewsId("Syd Barrett has died", "EN"), id);
+    assertEquals(new NewsId("Syd Barrett has died", "EN").hashCode(), id.hashCode());
+    assertNotEquals(new NewsId("Syd Barrett has died", "FR"), id);
+
+    assertSame(news, em.find(News.class, id));
+    em.clear();
+    assertEquals("The first singer of Pink Floyd has died today", em.find(News.class, id).getContent());
+  }
 }
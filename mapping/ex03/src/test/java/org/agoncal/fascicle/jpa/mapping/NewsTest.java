@@ -2,7 +2,10 @@ package org.agoncal.fascicle.jpa.mapping;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  * @author Antonio Goncalves
@@ -24,4 +27,29 @@ public class NewsTest extends AbstractPersistentTest {
     tx.commit();
     assertNotNull(news.getTitle(), "Id should not be null");
   }
+
+  @Test
+  public void shouldFindANewsByAnEqualId() throws Exception {
+
+    News news = new News("Syd Barrett has died", "EN", "The first singer of Pink Floyd has died today");
+    tx.begin();
+    em.persist(news);
+    tx.commit();
+
+    NewsId id = newsId(new String("Syd Barrett has died"), "EN");
+    assertEquals(newsId("Syd Barrett has died", "EN"), id);
+    assertEquals(newsId("Syd Barrett has died", "EN").hashCode(), id.hashCode());
+    assertNotEquals(newsId("Syd Barrett has died", "FR"), id);
+
+    assertSame(news, em.find(News.class, id));
+    em.clear();
+    assertEquals("The first singer of Pink Floyd has died today", em.find(News.class, id).getContent());
+  }
+
+  private static NewsId newsId(String title, String language) {
+    NewsId id = new NewsId();
+    id.setTitle(title);
+    id.setLanguage(language);
+    return id;
+  }
 }
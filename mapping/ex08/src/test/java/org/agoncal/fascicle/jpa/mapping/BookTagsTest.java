@@ -0,0 +1,100 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that changing a few tags of a book with many tags only sends the
+ * changed rows of the collection table to the database.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class BookTagsTest {
+
+  private static final int NB_OF_TAGS = 1000;
+
+  private static EntityManagerFactory emf;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", StatementCounter.properties());
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldOnlyWriteChangedTags() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    Book book = persistBookWithTags(em);
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    book.getTags().set(NB_OF_TAGS / 2, "changed");
+    em.getTransaction().commit();
+    assertEquals(1, StatementCounter.count("DELETE"));
+    assertEquals(1, StatementCounter.count("INSERT"));
+    assertEquals(2, StatementCounter.count());
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    book.getTags().add(1, "added");
+    book.getTags().remove("tag 10");
+    em.getTransaction().commit();
+    assertEquals(2, StatementCounter.count());
+
+    em.close();
+  }
+
+  @Test
+  public void shouldOnlyWriteChangedTagsOfAReloadedBook() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    Long id = persistBookWithTags(em).getId();
+    em.clear();
+
+    Book book = em.find(Book.class, id);
+    assertEquals(NB_OF_TAGS, book.getTags().size());
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    book.getTags().set(0, "changed");
+    em.getTransaction().commit();
+    assertEquals(2, StatementCounter.count());
+
+    em.clear();
+    assertEquals(NB_OF_TAGS, em.find(Book.class, id).getTags().size());
+    em.close();
+  }
+
+  private Book persistBookWithTags(EntityManager em) {
+    ArrayList<String> tags = new ArrayList<>();
+    for (int i = 0; i < NB_OF_TAGS; i++)
+      tags.add("tag " + i);
+    Book book = new Book("H2G2", 12.5F, "Scifi book", "1-84023-742-2", tags);
+
+    em.getTransaction().begin();
+    em.persist(book);
+    em.getTransaction().commit();
+    return book;
+  }
+}
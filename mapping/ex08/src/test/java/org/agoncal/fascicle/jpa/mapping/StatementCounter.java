@@ -0,0 +1,50 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.eclipse.persistence.logging.AbstractSessionLog;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.logging.SessionLogEntry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * EclipseLink logger recording the SQL statements sent to the database instead
+ * of printing them.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class StatementCounter extends AbstractSessionLog {
+
+  private static final List<String> statements = new CopyOnWriteArrayList<>();
+
+  public static Map<String, Object> properties() {
+    Map<String, Object> properties = new HashMap<>();
+    // A session of its own, otherwise the one already deployed for the unit is reused
+    properties.put("eclipselink.session-name", "statementCounter");
+    properties.put("eclipselink.logging.logger", StatementCounter.class.getName());
+    properties.put("eclipselink.logging.level.sql", "FINE");
+    return properties;
+  }
+
+  public static void reset() {
+    statements.clear();
+  }
+
+  public static long count(String verb) {
+    return statements.stream().filter(sql -> sql.startsWith(verb)).count();
+  }
+
+  public static long count() {
+    return statements.stream().filter(sql -> !sql.equals("SELECT 1")).count();
+  }
+
+  @Override
+  public void log(SessionLogEntry entry) {
+    if (SessionLog.SQL.equals(entry.getNameSpace()) && entry.getMessage() != null)
+      statements.add(entry.getMessage().trim());
+  }
+}
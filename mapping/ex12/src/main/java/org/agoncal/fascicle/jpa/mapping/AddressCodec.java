@@ -0,0 +1,99 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a list of addresses as one string: the six fields of each address
+ * follow each other, each one as its length, a colon and its value, or a dash
+ * when it is null. Lengths avoid escaping any character of the values, so
+ * <code>["65B Ritherdon Rd", null, "London", ...]</code> becomes
+ * <code>16:65B Ritherdon Rd-6:London...</code>.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class AddressCodec implements CompactCodec<List<Address>> {
+
+  private static final char NULL = '-';
+  private static final char SEPARATOR = ':';
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  @Override
+  public String convertToDatabaseColumn(List<Address> addresses) {
+    if (addresses == null)
+      return null;
+    StringBuilder data = new StringBuilder();
+    for (Address address : addresses) {
+      write(data, address.getStreet1());
+      write(data, address.getStreet2());
+      write(data, address.getCity());
+      write(data, address.getState());
+      write(data, address.getZipcode());
+      write(data, address.getCountry());
+    }
+    return data.toString();
+  }
+
+  @Override
+  public List<Address> convertToEntityAttribute(String dbData) {
+    if (dbData == null)
+      return null;
+    List<Address> addresses = new ArrayList<>();
+    Reader reader = new Reader(dbData);
+    while (reader.hasNext())
+      addresses.add(new Address(reader.next(), reader.next(), reader.next(), reader.next(), reader.next(), reader.next()));
+    return addresses;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private void write(StringBuilder data, String value) {
+    if (value == null)
+      data.append(NULL);
+    else
+      data.append(value.length()).append(SEPARATOR).append(value);
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  private static class Reader {
+
+    private final String data;
+    private int position;
+
+    Reader(String data) {
+      this.data = data;
+    }
+
+    boolean hasNext() {
+      return position < data.length();
+    }
+
+    String next() {
+      if (!hasNext())
+        throw new IllegalArgumentException("Truncated addresses: " + data);
+      if (data.charAt(position) == NULL) {
+        position++;
+        return null;
+      }
+      int separator = data.indexOf(SEPARATOR, position);
+      if (separator < 0)
+        throw new IllegalArgumentException("Malformed addresses: " + data);
+      int start = separator + 1;
+      int end = start + Integer.parseInt(data.substring(position, separator));
+      if (end > data.length())
+        throw new IllegalArgumentException("Truncated addresses: " + data);
+      position = end;
+      return data.substring(start, end);
+    }
+  }
+}
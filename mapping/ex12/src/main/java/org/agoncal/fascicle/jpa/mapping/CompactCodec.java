@@ -0,0 +1,17 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+/**
+ * Turns an attribute into a single column value and back, like an
+ * <code>AttributeConverter</code>, but called by the entity itself so that it
+ * can decode the column only when the attribute is first read.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public interface CompactCodec<X> {
+
+  String convertToDatabaseColumn(X attribute);
+
+  X convertToEntityAttribute(String dbData);
+}
@@ -0,0 +1,222 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.eclipse.persistence.annotations.Customizer;
+import org.eclipse.persistence.config.DescriptorCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.sessions.Session;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.Transient;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Same as {@link Customer} but for customers read far more often than they are
+ * changed: addresses are written by a {@link CompactCodec} in a column of the
+ * customer row, so loading a customer with its addresses is a single query.
+ * They are only decoded when first read. Addresses too long for the column
+ * fall back to a collection table, as in {@link Customer}.
+ * <p>
+ * The codec is given by the {@link #ADDRESS_CODEC} property of the persistence
+ * unit, an {@link AddressCodec} by default. Customers read from the database
+ * get it when they are built, new ones when they are persisted.
+ * <p>
+ * The address list is read-only: change addresses with
+ * {@link #setAddresses(List)}.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+@Entity
+@Customizer(CompactCustomer.CodecInjection.class)
+public class CompactCustomer {
+
+  public static final int MAX_COMPACT_LENGTH = 1000;
+  /**
+   * Persistence unit property giving the codec of the addresses, as a
+   * {@link CompactCodec} instance or class name.
+   */
+  public static final String ADDRESS_CODEC = "org.agoncal.fascicle.jpa.mapping.address-codec";
+
+  private static final CompactCodec<List<Address>> DEFAULT_CODEC = new AddressCodec();
+
+  @Id
+  @GeneratedValue
+  private Long id;
+  private String firstName;
+  private String lastName;
+  private String email;
+  private String phoneNumber;
+  @Column(name = "addresses", length = MAX_COMPACT_LENGTH)
+  private String compactAddresses;
+  @ElementCollection
+  @CollectionTable(name = "CompactCustomer_addresses")
+  private List<Address> tableAddresses = new ArrayList<>();
+  @Transient
+  private List<Address> addresses;
+  @Transient
+  private CompactCodec<List<Address>> codec = DEFAULT_CODEC;
+
+  public CompactCustomer() {
+  }
+
+  public CompactCustomer(String firstName, String lastName, String email, String phoneNumber) {
+    this.firstName = firstName;
+    this.lastName = lastName;
+    this.email = email;
+    this.phoneNumber = phoneNumber;
+  }
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @PostLoad
+  private void clearDecodedAddresses() {
+    addresses = null;
+  }
+
+  // ======================================
+  // =          Getters & Setters         =
+  // ======================================
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getFirstName() {
+    return firstName;
+  }
+
+  public void setFirstName(String firstName) {
+    this.firstName = firstName;
+  }
+
+  public String getLastName() {
+    return lastName;
+  }
+
+  public void setLastName(String lastName) {
+    this.lastName = lastName;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  public void setEmail(String email) {
+    this.email = email;
+  }
+
+  public String getPhoneNumber() {
+    return phoneNumber;
+  }
+
+  public void setPhoneNumber(String phoneNumber) {
+    this.phoneNumber = phoneNumber;
+  }
+
+  public List<Address> getAddresses() {
+    if (addresses == null)
+      addresses = Collections.unmodifiableList(compactAddresses != null ? codec.convertToEntityAttribute(compactAddresses) : tableAddresses);
+    return addresses;
+  }
+
+  public void setAddresses(List<Address> addresses) {
+    // Copied first, as the addresses may be those of the collection table
+    addresses = addresses == null ? null : new ArrayList<>(addresses);
+    String data = codec.convertToDatabaseColumn(addresses);
+    // The collection table is empty while addresses are in the column, no need to load it
+    if (compactAddresses == null)
+      tableAddresses.clear();
+    if (data != null && data.length() > MAX_COMPACT_LENGTH) {
+      compactAddresses = null;
+      tableAddresses.addAll(addresses);
+    } else {
+      compactAddresses = data;
+    }
+    this.addresses = null;
+  }
+
+  /**
+   * @return true if addresses are stored in the customer row
+   */
+  public boolean isCompact() {
+    return compactAddresses != null;
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  /**
+   * Hands the codec of the persistence unit to the customers: as is to those
+   * built from a row, already encoded with it, and encoding the addresses
+   * again to those about to be persisted.
+   */
+  public static class CodecInjection implements DescriptorCustomizer {
+
+    @Override
+    public void customize(ClassDescriptor descriptor) {
+      descriptor.getEventManager().addListener(new DescriptorEventAdapter() {
+        @Override
+        public void postBuild(DescriptorEvent event) {
+          ((CompactCustomer) event.getObject()).codec = codecOf(event.getSession());
+        }
+
+        @Override
+        public void postClone(DescriptorEvent event) {
+          ((CompactCustomer) event.getObject()).codec = codecOf(event.getSession());
+        }
+
+        @Override
+        public void prePersist(DescriptorEvent event) {
+          CompactCustomer customer = (CompactCustomer) event.getObject();
+          CompactCodec<List<Address>> codec = codecOf(event.getSession());
+          if (customer.codec == codec)
+            return;
+          List<Address> addresses = customer.isCompact() ? customer.getAddresses() : null;
+          customer.codec = codec;
+          if (addresses != null)
+            customer.setAddresses(addresses);
+        }
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompactCodec<List<Address>> codecOf(Session session) {
+      for (AbstractSession current = (AbstractSession) session; current != null; current = current.getParent()) {
+        Object codec = current.getProperty(ADDRESS_CODEC);
+        if (codec instanceof CompactCodec)
+          return (CompactCodec<List<Address>>) codec;
+        if (codec instanceof String) {
+          // Instantiated once, then kept in place of its name
+          CompactCodec<List<Address>> instance = newCodec((String) codec);
+          current.setProperty(ADDRESS_CODEC, instance);
+          return instance;
+        }
+      }
+      return DEFAULT_CODEC;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompactCodec<List<Address>> newCodec(String className) {
+      try {
+        return (CompactCodec<List<Address>>) Class.forName(className, true, CompactCustomer.class.getClassLoader()).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        throw new IllegalArgumentException("Cannot instantiate the address codec " + className, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the queries needed to read the addresses of a {@link Customer} and
+ * of a {@link CompactCustomer}, and the rows they are stored in.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class CompactCustomerTest {
+
+  private static EntityManagerFactory emf;
+  private EntityManager em;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", StatementCounter.properties());
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  @BeforeEach
+  public void initEntityManager() {
+    em = emf.createEntityManager();
+  }
+
+  @AfterEach
+  public void closeEntityManager() {
+    em.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldReadAddressesWithTheCustomer() throws Exception {
+    Customer customer = new Customer("John", "Smith", "jsmith@gmail.com", "1234565");
+    customer.setAddresses(addresses(3));
+    CompactCustomer compactCustomer = new CompactCustomer("John", "Smith", "jsmith@gmail.com", "1234565");
+    compactCustomer.setAddresses(addresses(3));
+    persist(customer, compactCustomer);
+    assertTrue(compactCustomer.isCompact());
+
+    StatementCounter.reset();
+    assertEquals(3, em.find(Customer.class, customer.getId()).getAddresses().size());
+    assertEquals(2, StatementCounter.count("SELECT"));
+
+    StatementCounter.reset();
+    List<Address> addresses = em.find(CompactCustomer.class, compactCustomer.getId()).getAddresses();
+    assertEquals(1, StatementCounter.count("SELECT"));
+    assertEquals(3, addresses.size());
+    assertEquals("75B Ritherdon Rd", addresses.get(1).getStreet1());
+    assertNull(addresses.get(1).getStreet2());
+    assertEquals("UK", addresses.get(2).getCountry());
+
+    assertEquals(3L, count("SELECT COUNT(*) FROM Customer_ADDRESSES WHERE Customer_ID = " + customer.getId()));
+    assertEquals(0L, count("SELECT COUNT(*) FROM CompactCustomer_addresses WHERE CompactCustomer_ID = " + compactCustomer.getId()));
+  }
+
+  @Test
+  public void shouldFallBackToTheCollectionTable() throws Exception {
+    CompactCustomer customer = new CompactCustomer("John", "Smith", "jsmith@gmail.com", "1234565");
+    customer.setAddresses(addresses(30));
+    persist(customer);
+    assertFalse(customer.isCompact());
+
+    CompactCustomer found = em.find(CompactCustomer.class, customer.getId());
+    assertEquals(30, found.getAddresses().size());
+    assertEquals(30L, count("SELECT COUNT(*) FROM CompactCustomer_addresses WHERE CompactCustomer_ID = " + customer.getId()));
+
+    em.getTransaction().begin();
+    found.setAddresses(found.getAddresses().subList(0, 2));
+    em.getTransaction().commit();
+    assertTrue(found.isCompact());
+    assertEquals(0L, count("SELECT COUNT(*) FROM CompactCustomer_addresses WHERE CompactCustomer_ID = " + customer.getId()));
+
+    em.clear();
+    assertEquals(2, em.find(CompactCustomer.class, customer.getId()).getAddresses().size());
+  }
+
+  @Test
+  public void shouldDecodeWhatWasEncoded() throws Exception {
+    AddressCodec codec = new AddressCodec();
+    List<Address> addresses = Arrays.asList(new Address("1:2:3", "", "-", null, "7QE554", "UK"));
+
+    String data = codec.convertToDatabaseColumn(addresses);
+    assertEquals("5:1:2:30:1:--6:7QE5542:UK", data);
+    Address address = codec.convertToEntityAttribute(data).get(0);
+    assertEquals("1:2:3", address.getStreet1());
+    assertEquals("", address.getStreet2());
+    assertEquals("-", address.getCity());
+    assertNull(address.getState());
+  }
+
+  @Test
+  public void shouldUseTheCodecOfThePersistenceUnit() throws Exception {
+    Map<String, Object> properties = new HashMap<>();
+    // A database of its own, not to drop the tables of the other tests
+    properties.put("eclipselink.session-name", "separatedCodec");
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:separatedCodecDB");
+    properties.put(CompactCustomer.ADDRESS_CODEC, SeparatedAddressCodec.class.getName());
+    EntityManagerFactory separatedEmf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+    EntityManager separatedEm = separatedEmf.createEntityManager();
+
+    // Encoded with the default codec until persisted
+    CompactCustomer customer = new CompactCustomer("John", "Smith", "jsmith@gmail.com", "1234565");
+    customer.setAddresses(addresses(2));
+    separatedEm.getTransaction().begin();
+    separatedEm.persist(customer);
+    separatedEm.getTransaction().commit();
+    separatedEm.clear();
+    separatedEmf.getCache().evictAll();
+    assertEquals("65B Ritherdon Rd||London|LDN|7QE554|UK|;75B Ritherdon Rd||London|LDN|7QE554|UK|",
+      separatedEm.createNativeQuery("SELECT addresses FROM CompactCustomer WHERE id = " + customer.getId()).getSingleResult());
+
+    CompactCustomer found = separatedEm.find(CompactCustomer.class, customer.getId());
+    assertEquals("75B Ritherdon Rd", found.getAddresses().get(1).getStreet1());
+    assertNull(found.getAddresses().get(1).getStreet2());
+
+    separatedEm.getTransaction().begin();
+    found.setAddresses(found.getAddresses().subList(1, 2));
+    separatedEm.getTransaction().commit();
+    assertEquals("75B Ritherdon Rd||London|LDN|7QE554|UK|",
+      separatedEm.createNativeQuery("SELECT addresses FROM CompactCustomer WHERE id = " + customer.getId()).getSingleResult());
+
+    separatedEm.close();
+    separatedEmf.close();
+  }
+
+  private List<Address> addresses(int size) {
+    List<Address> addresses = new ArrayList<>();
+    for (int i = 0; i < size; i++)
+      addresses.add(new Address((6 + i) + "5B Ritherdon Rd", null, "London", "LDN", "7QE554", "UK"));
+    return addresses;
+  }
+
+  private void persist(Object... entities) {
+    em.getTransaction().begin();
+    for (Object entity : entities)
+      em.persist(entity);
+    em.getTransaction().commit();
+    em.clear();
+    emf.getCache().evictAll();
+  }
+
+  private long count(String sql) {
+    return ((Number) em.createNativeQuery(sql).getSingleResult()).longValue();
+  }
+}
@@ -0,0 +1,52 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Second codec, writing each address as its six fields separated by a pipe,
+ * a null field being empty, and addresses separated by a semicolon. Values
+ * must contain neither character, nor be empty.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class SeparatedAddressCodec implements CompactCodec<List<Address>> {
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  @Override
+  public String convertToDatabaseColumn(List<Address> addresses) {
+    if (addresses == null)
+      return null;
+    StringBuilder data = new StringBuilder();
+    for (Address address : addresses) {
+      if (data.length() > 0)
+        data.append(';');
+      for (String value : Arrays.asList(address.getStreet1(), address.getStreet2(), address.getCity(), address.getState(), address.getZipcode(), address.getCountry()))
+        data.append(value == null ? "" : value).append('|');
+    }
+    return data.toString();
+  }
+
+  @Override
+  public List<Address> convertToEntityAttribute(String dbData) {
+    if (dbData == null)
+      return null;
+    List<Address> addresses = new ArrayList<>();
+    if (dbData.isEmpty())
+      return addresses;
+    for (String address : dbData.split(";")) {
+      String[] values = address.split("\\|", -1);
+      for (int i = 0; i < values.length; i++)
+        if (values[i].isEmpty())
+          values[i] = null;
+      addresses.add(new Address(values[0], values[1], values[2], values[3], values[4], values[5]));
+    }
+    return addresses;
+  }
+}
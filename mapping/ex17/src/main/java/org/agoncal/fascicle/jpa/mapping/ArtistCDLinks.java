@@ -0,0 +1,166 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.UnitOfWork;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Adds and removes <code>Artist.appearsOnCDs</code> links by id, straight in
+ * the <code>jnd_art_cd</code> join table and in JDBC batches, without loading
+ * any artist or CD. It runs on the connection of the current transaction of
+ * the entity manager, so links are committed or rolled back with it.
+ * <p>
+ * Artists and CDs whose collections changed are refreshed if they are managed
+ * by the entity manager (pending changes on them are lost, so flush them
+ * before linking), and evicted from the second level cache once the
+ * transaction commits.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ArtistCDLinks {
+
+  private static final String INSERT = "INSERT INTO jnd_art_cd (artist_fk, cd_fk) SELECT CAST(?1 AS BIGINT), CAST(?2 AS BIGINT) FROM DUAL " +
+    "WHERE NOT EXISTS (SELECT 1 FROM jnd_art_cd WHERE artist_fk = ?1 AND cd_fk = ?2)";
+  private static final String DELETE = "DELETE FROM jnd_art_cd WHERE artist_fk = ? AND cd_fk = ?";
+
+  private final EntityManager em;
+  private final int batchSize;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public ArtistCDLinks(EntityManager em) {
+    this(em, 500);
+  }
+
+  public ArtistCDLinks(EntityManager em, int batchSize) {
+    this.em = em;
+    this.batchSize = batchSize;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Links the artist to the CDs it does not appear on yet, the others are
+   * left as they are.
+   *
+   * @return the number of links added
+   */
+  public int link(Long artistId, Collection<Long> cdIds) {
+    return execute(INSERT, artistId, cdIds);
+  }
+
+  /**
+   * @return the number of links removed
+   */
+  public int unlink(Long artistId, Collection<Long> cdIds) {
+    return execute(DELETE, artistId, cdIds);
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private int execute(String sql, Long artistId, Collection<Long> cdIds) {
+    if (!em.getTransaction().isActive())
+      throw new IllegalStateException("Links can only be changed in a transaction");
+
+    int rows = 0;
+    Connection connection = em.unwrap(Connection.class);
+    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+      int pending = 0;
+      for (Long cdId : cdIds) {
+        statement.setLong(1, artistId);
+        statement.setLong(2, cdId);
+        statement.addBatch();
+        if (++pending == batchSize) {
+          rows += sum(statement.executeBatch());
+          pending = 0;
+        }
+      }
+      if (pending > 0)
+        rows += sum(statement.executeBatch());
+    } catch (SQLException e) {
+      throw new PersistenceException("Cannot update the links of artist " + artistId, e);
+    }
+
+    Eviction eviction = evictionOf(em.unwrap(UnitOfWork.class));
+    refresh(Artist.class, artistId);
+    eviction.artists.add(artistId);
+    for (Long cdId : cdIds) {
+      refresh(CD.class, cdId);
+      eviction.cds.add(cdId);
+    }
+    return rows;
+  }
+
+  private void refresh(Class<?> entityClass, Long id) {
+    Object managed = em.unwrap(UnitOfWork.class).getIdentityMapAccessor().getFromIdentityMap(id, entityClass);
+    if (managed != null && em.contains(managed))
+      em.refresh(managed);
+  }
+
+  /**
+   * Evicting before the commit would let another transaction cache the links
+   * again as they still are in the database, so the unit of work evicts them
+   * once committed.
+   */
+  private Eviction evictionOf(UnitOfWork uow) {
+    for (Object listener : uow.getEventManager().getListeners())
+      if (listener instanceof Eviction)
+        return (Eviction) listener;
+    Eviction eviction = new Eviction(em.getEntityManagerFactory().getCache());
+    uow.getEventManager().addListener(eviction);
+    return eviction;
+  }
+
+  private static int sum(int[] counts) {
+    int sum = 0;
+    for (int count : counts)
+      sum += count == PreparedStatement.SUCCESS_NO_INFO ? 1 : count;
+    return sum;
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  private static class Eviction extends SessionEventAdapter {
+
+    private final Cache cache;
+    private final Set<Long> artists = new HashSet<>();
+    private final Set<Long> cds = new HashSet<>();
+
+    Eviction(Cache cache) {
+      this.cache = cache;
+    }
+
+    @Override
+    public void postCommitUnitOfWork(SessionEvent event) {
+      artists.forEach(id -> cache.evict(Artist.class, id));
+      cds.forEach(id -> cache.evict(CD.class, id));
+      postReleaseUnitOfWork(event);
+    }
+
+    @Override
+    public void postReleaseUnitOfWork(SessionEvent event) {
+      artists.clear();
+      cds.clear();
+    }
+  }
+}
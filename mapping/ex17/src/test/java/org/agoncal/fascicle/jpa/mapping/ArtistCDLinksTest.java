@@ -0,0 +1,125 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.Cache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ArtistCDLinksTest extends AbstractPersistentTest {
+
+  private static final int NB_OF_CDS = 2000;
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldLinkAndUnlinkAnArtistToThousandsOfCDs() throws Exception {
+
+    Artist jimi = new Artist("Jimi", "Hendrix");
+    List<Long> cdIds = new ArrayList<>();
+    tx.begin();
+    em.persist(jimi);
+    List<CD> cds = new ArrayList<>();
+    for (int i = 0; i < NB_OF_CDS; i++) {
+      CD cd = new CD("Live " + i, 12.5F, "Hendrix live with friends");
+      em.persist(cd);
+      cds.add(cd);
+    }
+    tx.commit();
+    cds.forEach(cd -> cdIds.add(cd.getId()));
+
+    // Links without loading the CDs, the managed artist is refreshed
+    tx.begin();
+    assertEquals(NB_OF_CDS, new ArtistCDLinks(em, 100).link(jimi.getId(), cdIds));
+    tx.commit();
+    assertEquals(NB_OF_CDS, jimi.getAppearsOnCDs().size());
+    assertEquals(NB_OF_CDS, countLinks(jimi.getId()));
+
+    tx.begin();
+    assertEquals(NB_OF_CDS / 2, new ArtistCDLinks(em).unlink(jimi.getId(), cdIds.subList(0, NB_OF_CDS / 2)));
+    tx.commit();
+    assertEquals(NB_OF_CDS / 2, countLinks(jimi.getId()));
+
+    // Nothing stale left in the cache either
+    em.clear();
+    assertEquals(NB_OF_CDS / 2, em.find(Artist.class, jimi.getId()).getAppearsOnCDs().size());
+  }
+
+  @Test
+  public void shouldRollbackLinksWithTheTransaction() throws Exception {
+
+    Artist ringo = new Artist("Ringo", "Starr");
+    CD sgtpepper = new CD("Sergent Pepper", 28.5F, "Best Beatles Album");
+    tx.begin();
+    em.persist(ringo);
+    em.persist(sgtpepper);
+    tx.commit();
+
+    List<Long> cdIds = new ArrayList<>();
+    cdIds.add(sgtpepper.getId());
+    tx.begin();
+    new ArtistCDLinks(em).link(ringo.getId(), cdIds);
+    tx.rollback();
+
+    assertEquals(0, countLinks(ringo.getId()));
+  }
+
+  @Test
+  public void shouldOnlyAddMissingLinks() throws Exception {
+
+    Artist paul = new Artist("Paul", "McCartney");
+    CD abbeyRoad = new CD("Abbey Road", 25.5F, "Last recorded Beatles album");
+    CD letItBe = new CD("Let It Be", 22.5F, "Last released Beatles album");
+    tx.begin();
+    em.persist(paul);
+    em.persist(abbeyRoad);
+    em.persist(letItBe);
+    tx.commit();
+
+    tx.begin();
+    assertEquals(1, new ArtistCDLinks(em).link(paul.getId(), Arrays.asList(abbeyRoad.getId(), abbeyRoad.getId())));
+    assertEquals(1, new ArtistCDLinks(em).link(paul.getId(), Arrays.asList(abbeyRoad.getId(), letItBe.getId())));
+    tx.commit();
+    assertEquals(2, countLinks(paul.getId()));
+  }
+
+  @Test
+  public void shouldEvictLinkedEntitiesOnceCommitted() throws Exception {
+
+    Artist george = new Artist("George", "Harrison");
+    CD revolver = new CD("Revolver", 21.5F, "Seventh Beatles album");
+    tx.begin();
+    em.persist(george);
+    em.persist(revolver);
+    tx.commit();
+    Cache cache = emf.getCache();
+    assertTrue(cache.contains(Artist.class, george.getId()));
+
+    tx.begin();
+    new ArtistCDLinks(em).link(george.getId(), Arrays.asList(revolver.getId()));
+    // Other transactions keep reading the committed links until then
+    assertTrue(cache.contains(Artist.class, george.getId()));
+    assertTrue(cache.contains(CD.class, revolver.getId()));
+    tx.commit();
+
+    assertFalse(cache.contains(Artist.class, george.getId()));
+    assertFalse(cache.contains(CD.class, revolver.getId()));
+  }
+
+  private long countLinks(Long artistId) {
+    return ((Number) em.createNativeQuery("SELECT COUNT(*) FROM jnd_art_cd WHERE artist_fk = ?")
+      .setParameter(1, artistId).getSingleResult()).longValue();
+  }
+}
@@ -0,0 +1,88 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+@Entity
+public class LiveComment implements SparseOrder.Sorted {
+
+  @Id
+  @GeneratedValue
+  private Long id;
+  private String nickname;
+  private String content;
+  private Integer note;
+  @Column(name = "sort_key")
+  private long sortKey;
+  @ManyToOne
+  @JoinColumn(name = "news_fk")
+  private LiveNews news;
+
+  public LiveComment() {
+  }
+
+  public LiveComment(String nickname, String content, Integer note) {
+    this.nickname = nickname;
+    this.content = content;
+    this.note = note;
+  }
+
+  // ======================================
+  // =          Getters & Setters         =
+  // ======================================
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getNickname() {
+    return nickname;
+  }
+
+  public void setNickname(String nickname) {
+    this.nickname = nickname;
+  }
+
+  public String getContent() {
+    return content;
+  }
+
+  public void setContent(String content) {
+    this.content = content;
+  }
+
+  public Integer getNote() {
+    return note;
+  }
+
+  public void setNote(Integer note) {
+    this.note = note;
+  }
+
+  @Override
+  public long getSortKey() {
+    return sortKey;
+  }
+
+  @Override
+  public void setSortKey(long sortKey) {
+    this.sortKey = sortKey;
+  }
+
+  public LiveNews getNews() {
+    return news;
+  }
+
+  public void setNews(LiveNews news) {
+    this.news = news;
+  }
+}
@@ -0,0 +1,69 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.OneToMany;
+import javax.persistence.OrderBy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Same as {@link News} but for busy news with thousands of comments: comments
+ * are ordered by a sparse sort key (see {@link SparseOrder}) so inserting one in
+ * the middle does not update the index of every following comment.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+@Entity
+public class LiveNews {
+
+  @Id
+  @GeneratedValue
+  private Long id;
+  @Column(nullable = false)
+  private String content;
+  @OneToMany(mappedBy = "news", cascade = CascadeType.PERSIST)
+  @OrderBy("sortKey")
+  private List<LiveComment> comments = new ArrayList<>();
+
+  public LiveNews() {
+  }
+
+  public LiveNews(String content) {
+    this.content = content;
+  }
+
+  // ======================================
+  // =          Getters & Setters         =
+  // ======================================
+
+  public Long getId() {
+    return id;
+  }
+
+  public String getContent() {
+    return content;
+  }
+
+  public void setContent(String content) {
+    this.content = content;
+  }
+
+  public void addComment(LiveComment comment) {
+    insertComment(comments.size(), comment);
+  }
+
+  public void insertComment(int index, LiveComment comment) {
+    comment.setNews(this);
+    SparseOrder.insert(comments, index, comment);
+  }
+
+  public List<LiveComment> getComments() {
+    return comments;
+  }
+}
@@ -0,0 +1,140 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import java.util.List;
+
+/**
+ * Keeps a list ordered by sparse sort keys instead of an
+ * <code>@OrderColumn</code> index. Keys are spread {@link #GAP} apart over the
+ * whole <code>long</code> range, so an element inserted anywhere takes the
+ * middle key of its neighbours and no other row changes. An element added
+ * before the first one or after the last one takes a key {@link #GAP} away,
+ * negative keys included, so the ends never run out of keys.
+ * <p>
+ * Only when two neighbours have no key left between them (after about 32
+ * inserts at the same place) are some elements renumbered: the smallest window
+ * around the insert whose neighbours leave {@link #MIN_SPACING} between its
+ * keys, doubling its size until they do. A maintenance job can renumber the
+ * whole list ahead of time with {@link #needsRenumbering} and
+ * {@link #renumber}.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public final class SparseOrder {
+
+  public static final long GAP = 1L << 32;
+  /**
+   * Spacing of the keys of a renumbered window, leaving room for 16 more
+   * inserts at the same place.
+   */
+  public static final long MIN_SPACING = 1L << 16;
+
+  private SparseOrder() {
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public static <T extends Sorted> void insert(List<T> list, int index, T element) {
+    if (index < 0 || index > list.size())
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + list.size());
+
+    if (!hasRoomAt(list, index))
+      renumberAround(list, index);
+
+    element.setSortKey(middle(lowerBound(list, index), upperBound(list, index)));
+    list.add(index, element);
+  }
+
+  public static <T extends Sorted> void renumber(List<T> list) {
+    for (int i = 0; i < list.size(); i++)
+      list.get(i).setSortKey((i + 1) * GAP);
+  }
+
+  /**
+   * @return true if two neighbours are so close an insert between them would
+   * renumber part of the list
+   */
+  public static boolean needsRenumbering(List<? extends Sorted> list) {
+    for (int i = 0; i <= list.size(); i++) {
+      if (!hasRoomAt(list, i))
+        return true;
+    }
+    return false;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private static boolean hasRoomAt(List<? extends Sorted> list, int index) {
+    // Bounds are ordered, so their difference is right as an unsigned value
+    return Long.compareUnsigned(upperBound(list, index) - lowerBound(list, index), 2) >= 0;
+  }
+
+  /**
+   * Renumbers the elements from <code>from</code> to <code>to</code>, leaving
+   * the key at <code>index</code> free.
+   */
+  private static void renumberAround(List<? extends Sorted> list, int index) {
+    int from = Math.max(0, index - 1);
+    int to = Math.min(list.size(), index + 1);
+    long spacing;
+    while (true) {
+      long keys = to - from + 1;
+      long lower = from == 0 ? minus(list.get(0).getSortKey(), (keys + 1) * GAP) : list.get(from - 1).getSortKey();
+      long upper = to == list.size() ? plus(list.get(list.size() - 1).getSortKey(), (keys + 1) * GAP) : list.get(to).getSortKey();
+      spacing = Long.divideUnsigned(upper - lower, keys + 1);
+      if (spacing >= MIN_SPACING || (from == 0 && to == list.size())) {
+        long key = lower;
+        for (int i = from; i < to; i++) {
+          key += spacing;
+          if (i == index)
+            key += spacing;
+          list.get(i).setSortKey(key);
+        }
+        return;
+      }
+      int size = to - from;
+      from = Math.max(0, from - size);
+      to = Math.min(list.size(), to + size);
+    }
+  }
+
+  private static long lowerBound(List<? extends Sorted> list, int index) {
+    if (list.isEmpty())
+      return 0;
+    return index == 0 ? minus(list.get(0).getSortKey(), 2 * GAP) : list.get(index - 1).getSortKey();
+  }
+
+  private static long upperBound(List<? extends Sorted> list, int index) {
+    if (list.isEmpty())
+      return 2 * GAP;
+    return index == list.size() ? plus(list.get(index - 1).getSortKey(), 2 * GAP) : list.get(index).getSortKey();
+  }
+
+  private static long middle(long lower, long upper) {
+    return (lower >> 1) + (upper >> 1) + (lower & upper & 1);
+  }
+
+  private static long minus(long key, long distance) {
+    return key < Long.MIN_VALUE + distance ? Long.MIN_VALUE : key - distance;
+  }
+
+  private static long plus(long key, long distance) {
+    return key > Long.MAX_VALUE - distance ? Long.MAX_VALUE : key + distance;
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  public interface Sorted {
+
+    long getSortKey();
+
+    void setSortKey(long sortKey);
+  }
+}
@@ -0,0 +1,157 @@
+package org.agoncal.fascicle.jpa.mapping;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares inserting a comment in the middle of a long list mapped with
+ * <code>@OrderColumn</code> ({@link News}) and with sparse sort keys
+ * ({@link LiveNews}).
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class LiveNewsTest {
+
+  private static final int NB_OF_COMMENTS = 1000;
+  private static final int NB_OF_INSERTS = 100;
+
+  private static EntityManagerFactory emf;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  public static void initFactory() {
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", StatementCounter.properties());
+  }
+
+  @AfterAll
+  public static void closeFactory() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldRewriteFollowingIndexesWithOrderColumn() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    News news = new News("Death of Michael Jackson");
+    em.getTransaction().begin();
+    for (int i = 0; i < NB_OF_COMMENTS; i++) {
+      Comment comment = new Comment("elvis", "Comment " + i, 3);
+      news.addComment(comment);
+      em.persist(comment);
+    }
+    em.persist(news);
+    em.getTransaction().commit();
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    Comment comment = new Comment("gonzo", "Inserted", 5);
+    em.persist(comment);
+    news.getComments().add(1, comment);
+    em.getTransaction().commit();
+    assertTrue(StatementCounter.count("UPDATE") >= NB_OF_COMMENTS - 1);
+
+    em.close();
+  }
+
+  @Test
+  public void shouldInsertInTheMiddleWithOneStatement() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    LiveNews news = new LiveNews("Death of Michael Jackson");
+    for (int i = 0; i < NB_OF_COMMENTS; i++)
+      news.addComment(new LiveComment("elvis", "Comment " + i, 3));
+    em.getTransaction().begin();
+    em.persist(news);
+    em.getTransaction().commit();
+
+    StatementCounter.reset();
+    em.getTransaction().begin();
+    news.insertComment(1, new LiveComment("gonzo", "Inserted", 5));
+    em.persist(news);
+    em.getTransaction().commit();
+    assertEquals(1, StatementCounter.count("INSERT"));
+    assertEquals(0, StatementCounter.count("UPDATE"));
+
+    em.clear();
+    LiveNews found = em.find(LiveNews.class, news.getId());
+    assertEquals(NB_OF_COMMENTS + 1, found.getComments().size());
+    assertEquals("Comment 0", found.getComments().get(0).getContent());
+    assertEquals("Inserted", found.getComments().get(1).getContent());
+    assertEquals("Comment 1", found.getComments().get(2).getContent());
+
+    em.close();
+  }
+
+  @Test
+  public void shouldInsertAtTheHeadWithABoundedNumberOfStatements() throws Exception {
+    EntityManager em = emf.createEntityManager();
+    LiveNews news = new LiveNews("Death of Michael Jackson");
+    for (int i = 0; i < NB_OF_COMMENTS; i++)
+      news.addComment(new LiveComment("elvis", "Comment " + i, 3));
+    em.getTransaction().begin();
+    em.persist(news);
+    em.getTransaction().commit();
+
+    // Newest first, and newest after the pinned first comment
+    StatementCounter.reset();
+    for (int i = 0; i < NB_OF_INSERTS; i++) {
+      em.getTransaction().begin();
+      news.insertComment(0, new LiveComment("gonzo", "Newest " + i, 5));
+      news.insertComment(1, new LiveComment("gonzo", "Pinned newest " + i, 5));
+      em.persist(news);
+      em.getTransaction().commit();
+    }
+    assertEquals(2 * NB_OF_INSERTS, StatementCounter.count("INSERT"));
+    // A window renumbered every 32 inserts at the same place, never the whole list
+    assertTrue(StatementCounter.count("UPDATE") < NB_OF_INSERTS, StatementCounter.count("UPDATE") + " updates");
+
+    em.clear();
+    LiveNews found = em.find(LiveNews.class, news.getId());
+    assertEquals(NB_OF_COMMENTS + 2 * NB_OF_INSERTS, found.getComments().size());
+    assertEquals("Newest " + (NB_OF_INSERTS - 1), found.getComments().get(0).getContent());
+    assertEquals("Pinned newest " + (NB_OF_INSERTS - 1), found.getComments().get(1).getContent());
+    assertEquals("Comment 0", found.getComments().get(2 * NB_OF_INSERTS).getContent());
+    assertEquals("Comment " + (NB_OF_COMMENTS - 1), found.getComments().get(found.getComments().size() - 1).getContent());
+
+    em.close();
+  }
+
+  @Test
+  public void shouldRenumberAWindowWhenTheGapIsExhausted() {
+    LiveNews news = new LiveNews("Death of Michael Jackson");
+    for (int i = 0; i < NB_OF_COMMENTS; i++)
+      news.addComment(new LiveComment("elvis", "Comment " + i, 3));
+    long first = news.getComments().get(0).getSortKey();
+    long last = news.getComments().get(NB_OF_COMMENTS - 1).getSortKey();
+
+    for (int i = 0; i < 32; i++)
+      news.insertComment(500, new LiveComment("gonzo", "Inserted " + i, 5));
+    assertTrue(SparseOrder.needsRenumbering(news.getComments()));
+
+    news.insertComment(500, new LiveComment("gonzo", "Renumbered", 5));
+    assertFalse(SparseOrder.needsRenumbering(news.getComments()));
+    for (int i = 1; i < news.getComments().size(); i++)
+      assertTrue(news.getComments().get(i - 1).getSortKey() < news.getComments().get(i).getSortKey());
+    assertEquals("Renumbered", news.getComments().get(500).getContent());
+    assertEquals("Inserted 31", news.getComments().get(501).getContent());
+    // Far from the insert, keys did not change
+    assertEquals(first, news.getComments().get(0).getSortKey());
+    assertEquals(last, news.getComments().get(news.getComments().size() - 1).getSortKey());
+  }
+}
@@ -1,5 +1,8 @@
 package org.agoncal.fascicle.jpa.puttingtogether;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
 import javax.persistence.CollectionTable;
 import javax.persistence.Column;
 import javax.persistence.ElementCollection;
@@ -9,6 +12,7 @@ import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.MapKeyColumn;
 import javax.persistence.NamedQuery;
+import javax.persistence.QueryHint;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -21,7 +25,7 @@ import java.util.Map;
  */
 // tag::adocSnippet[]
 @Entity
-@NamedQuery(name = "findAllBooks", query = "SELECT b FROM Book b")
+@NamedQuery(name = "findAllBooks", query = "SELECT b FROM Book b", hints = @QueryHint(name = QueryHints.QUERY_RESULTS_CACHE, value = HintValues.TRUE))
 @NamedQuery(name = "findBookH2G2", query = "SELECT b FROM Book b WHERE b.title ='H2G2'")
 public class Book extends Item {
 
@@ -0,0 +1,14 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+/**
+ * Hands out unique ids for one entity, without a database round trip for most
+ * of them.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public interface IdAllocator {
+
+  long next();
+}
@@ -0,0 +1,163 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.eclipse.persistence.exceptions.DatabaseException;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.eclipse.persistence.sessions.Session;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * EclipseLink sequence delegating to one {@link IdAllocator} per sequence name
+ * (the {@link IdSequenceCustomizer} gives each entity its own name). Ids are
+ * generated one at a time, outside of EclipseLink's preallocation and its
+ * sequencing lock.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class IdBlockSequence extends Sequence {
+
+  private final transient Function<String, IdAllocator> allocatorFactory;
+  private final transient Map<String, IdAllocator> allocators = new ConcurrentHashMap<>();
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public IdBlockSequence(String name, Function<String, IdAllocator> allocatorFactory) {
+    super(name);
+    this.allocatorFactory = allocatorFactory;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public IdAllocator getAllocator(String sequenceName) {
+    return allocators.computeIfAbsent(sequenceName, allocatorFactory);
+  }
+
+  @Override
+  public Object getGeneratedValue(Accessor accessor, AbstractSession writeSession, String seqName) {
+    return getAllocator(seqName).next();
+  }
+
+  @Override
+  public Vector getGeneratedVector(Accessor accessor, AbstractSession writeSession, String seqName, int size) {
+    return null;
+  }
+
+  @Override
+  public boolean shouldAcquireValueAfterInsert() {
+    return false;
+  }
+
+  @Override
+  public boolean shouldUseTransaction() {
+    return false;
+  }
+
+  @Override
+  public boolean shouldUsePreallocation() {
+    return false;
+  }
+
+  @Override
+  public void onConnect() {
+  }
+
+  @Override
+  public void onDisconnect() {
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  /**
+   * Keeps the next free id of each sequence in the <code>ID_BLOCK</code> table
+   * and reserves blocks on a dedicated, auto committed connection, so a block
+   * is never tied to (nor rolled back with) the inserting transaction.
+   */
+  static class JdbcBlockSource implements PooledIdAllocator.BlockSource {
+
+    private final Session session;
+    private Connection connection;
+
+    JdbcBlockSource(Session session) {
+      this.session = session;
+    }
+
+    @Override
+    public synchronized long reserve(String name, int size) {
+      try {
+        Connection connection = connection();
+        try (PreparedStatement update = connection.prepareStatement("UPDATE ID_BLOCK SET NEXT_VALUE = NEXT_VALUE + ? WHERE NAME = ?")) {
+          update.setLong(1, size);
+          update.setString(2, name);
+          if (update.executeUpdate() == 0) {
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO ID_BLOCK (NAME, NEXT_VALUE) VALUES (?, ?)")) {
+              insert.setString(1, name);
+              insert.setLong(2, 1L + size);
+              insert.executeUpdate();
+            }
+          }
+        }
+        try (PreparedStatement select = connection.prepareStatement("SELECT NEXT_VALUE FROM ID_BLOCK WHERE NAME = ?")) {
+          select.setString(1, name);
+          try (ResultSet rs = select.executeQuery()) {
+            rs.next();
+            long first = rs.getLong(1) - size;
+            connection.commit();
+            return first;
+          }
+        }
+      } catch (SQLException e) {
+        rollback();
+        throw DatabaseException.sqlException(e);
+      }
+    }
+
+    private Connection connection() throws SQLException {
+      if (connection == null || connection.isClosed()) {
+        connection = (Connection) session.getDatasourceLogin().connectToDatasource(null, session);
+        connection.setAutoCommit(true);
+        try (Statement statement = connection.createStatement()) {
+          statement.execute("CREATE TABLE IF NOT EXISTS ID_BLOCK (NAME VARCHAR(255) PRIMARY KEY, NEXT_VALUE BIGINT NOT NULL)");
+        }
+        connection.setAutoCommit(false);
+      }
+      return connection;
+    }
+
+    synchronized void close() {
+      try {
+        if (connection != null)
+          connection.close();
+      } catch (SQLException e) {
+        // Nothing to release anymore
+      }
+      connection = null;
+    }
+
+    private void rollback() {
+      try {
+        if (connection != null)
+          connection.rollback();
+      } catch (SQLException e) {
+        connection = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+import java.util.function.Function;
+
+/**
+ * Replaces the <code>@GeneratedValue</code> AUTO sequencing table of every
+ * entity by an {@link IdBlockSequence}. Registered in
+ * <code>persistence.xml</code> as <code>eclipselink.session.customizer</code>
+ * and configured with the following persistence unit properties:
+ * <ul>
+ * <li><code>cdbookstore.id.mode</code>: <code>pooled</code> (default) for
+ * per-thread blocks reserved in the <code>ID_BLOCK</code> table, or
+ * <code>time</code> for time ordered ids with no database round trip</li>
+ * <li><code>cdbookstore.id.block-size</code>: default block size (100)</li>
+ * <li><code>cdbookstore.id.block-size.&lt;Entity&gt;</code>: block size of
+ * one entity</li>
+ * <li><code>cdbookstore.id.node</code>: node id of this JVM in time mode (0)</li>
+ * </ul>
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class IdSequenceCustomizer implements SessionCustomizer {
+
+  public static final String MODE = "cdbookstore.id.mode";
+  public static final String BLOCK_SIZE = "cdbookstore.id.block-size";
+  public static final String NODE = "cdbookstore.id.node";
+
+  private static final int DEFAULT_BLOCK_SIZE = 100;
+
+  @Override
+  public void customize(Session session) {
+    IdBlockSequence sequence = new IdBlockSequence("ID_BLOCK", allocatorFactory(session));
+    session.getLogin().setDefaultSequence(sequence);
+
+    // One sequence name, hence one allocator, per entity
+    for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+      if (descriptor.usesSequenceNumbers()) {
+        descriptor.setSequenceNumberName(descriptor.getAlias());
+        descriptor.setSequence(sequence);
+      }
+    }
+  }
+
+  private Function<String, IdAllocator> allocatorFactory(Session session) {
+    String mode = property(session, MODE, "pooled");
+    switch (mode) {
+      case "pooled":
+        IdBlockSequence.JdbcBlockSource source = new IdBlockSequence.JdbcBlockSource(session);
+        session.getEventManager().addListener(new SessionEventAdapter() {
+          @Override
+          public void postLogout(SessionEvent event) {
+            source.close();
+          }
+        });
+        int defaultBlockSize = Integer.parseInt(property(session, BLOCK_SIZE, String.valueOf(DEFAULT_BLOCK_SIZE)));
+        return name -> new PooledIdAllocator(name, Integer.parseInt(property(session, BLOCK_SIZE + "." + name, String.valueOf(defaultBlockSize))), source);
+      case "time":
+        // All entities share the allocator: ids stay unique across tables
+        TimeOrderedIdAllocator allocator = new TimeOrderedIdAllocator(Integer.parseInt(property(session, NODE, "0")));
+        return name -> allocator;
+      default:
+        throw new IllegalArgumentException("Unknown " + MODE + ": " + mode);
+    }
+  }
+
+  private static String property(Session session, String name, String defaultValue) {
+    Object value = session.getProperty(name);
+    return value == null ? defaultValue : value.toString();
+  }
+}
@@ -0,0 +1,232 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.expressions.Expression;
+import org.eclipse.persistence.expressions.ExpressionBuilder;
+import org.eclipse.persistence.internal.expressions.ExpressionIterator;
+import org.eclipse.persistence.internal.expressions.QueryKeyExpression;
+import org.eclipse.persistence.internal.helper.DatabaseField;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.AggregateCollectionMapping;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.mappings.DirectCollectionMapping;
+import org.eclipse.persistence.mappings.ManyToManyMapping;
+import org.eclipse.persistence.mappings.OneToOneMapping;
+import org.eclipse.persistence.mappings.UnidirectionalOneToManyMapping;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.Session;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recommends the secondary indexes of a persistence unit: the columns compared
+ * in the <code>WHERE</code> clause of its named queries, and the foreign key
+ * columns of its associations and collection tables. Primary key columns are
+ * already indexed and left out.
+ * <p>
+ * Run by {@link #main(String[])}, it writes a <code>CREATE INDEX</code>
+ * script, each index preceded by the reasons for it, to be reviewed and
+ * applied along with the generated DDL scripts. The build runs it once the
+ * classes are compiled, writing <code>target/cdbookstoreIndexes.ddl</code>.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class IndexAdvisor {
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Writes the index script of a unit. The unit is deployed against an empty
+   * in-memory database, without generating its schema.
+   *
+   * @param args the persistence unit name and the script file
+   */
+  public static void main(String[] args) {
+    String unitName = args.length > 0 ? args[0] : "cdbookstorePU";
+    String target = args.length > 1 ? args[1] : "cdbookstoreIndexes.ddl";
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:indexAdvisor");
+    properties.put("javax.persistence.schema-generation.database.action", "none");
+    properties.put("javax.persistence.schema-generation.scripts.action", "none");
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory(unitName, properties);
+    try {
+      write(new IndexAdvisor().advise(JpaHelper.getServerSession(emf)), target);
+    } finally {
+      emf.close();
+    }
+  }
+
+  /**
+   * @return the recommended indexes, in the order of the descriptors and of
+   * the named queries
+   */
+  public Collection<Index> advise(Session session) {
+    Map<String, Index> indexes = new LinkedHashMap<>();
+    for (ClassDescriptor descriptor : session.getDescriptors().values())
+      for (DatabaseMapping mapping : descriptor.getMappings())
+        adviseForeignKeys(indexes, descriptor, mapping);
+
+    for (List<DatabaseQuery> queries : session.getQueries().values())
+      for (DatabaseQuery query : queries)
+        if (query.getJPQLString() != null)
+          adviseNamedQuery(indexes, session, query);
+    return indexes.values();
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private void adviseForeignKeys(Map<String, Index> indexes, ClassDescriptor descriptor, DatabaseMapping mapping) {
+    String attribute = descriptor.getAlias() + "." + mapping.getAttributeName();
+    if (mapping instanceof OneToOneMapping && ((OneToOneMapping) mapping).isForeignKeyRelationship()) {
+      add(indexes, descriptor, ((OneToOneMapping) mapping).getForeignKeyFields(), "joins " + attribute);
+    } else if (mapping instanceof ManyToManyMapping) {
+      ManyToManyMapping manyToMany = (ManyToManyMapping) mapping;
+      add(indexes, null, manyToMany.getSourceRelationKeyFields(), "loads " + attribute);
+      add(indexes, null, manyToMany.getTargetRelationKeyFields(), "joins the other side of " + attribute);
+    } else if (mapping instanceof UnidirectionalOneToManyMapping) {
+      add(indexes, null, ((UnidirectionalOneToManyMapping) mapping).getTargetForeignKeyFields(), "loads " + attribute);
+    } else if (mapping instanceof DirectCollectionMapping) {
+      add(indexes, null, ((DirectCollectionMapping) mapping).getReferenceKeyFields(), "loads " + attribute);
+    } else if (mapping instanceof AggregateCollectionMapping) {
+      add(indexes, null, ((AggregateCollectionMapping) mapping).getTargetForeignKeyFields(), "loads " + attribute);
+    }
+  }
+
+  private void adviseNamedQuery(Map<String, Index> indexes, Session session, DatabaseQuery query) {
+    DatabaseQuery parsed;
+    try {
+      parsed = ((AbstractSession) session).getQueryBuilder().buildQuery(query.getJPQLString(), (AbstractSession) session);
+    } catch (RuntimeException e) {
+      // Not valid for this unit, EclipseLink reports it when the query is used
+      return;
+    }
+    Expression criteria = parsed.getSelectionCriteria();
+    if (criteria == null)
+      return;
+    criteria.iterateOn(new ExpressionIterator() {
+      @Override
+      public void iterate(Expression each) {
+        if (!(each instanceof QueryKeyExpression))
+          return;
+        DatabaseMapping mapping = mappingOf((QueryKeyExpression) each, session);
+        if (mapping == null)
+          return;
+        String reason = query.getName() + " filters on " + mapping.getDescriptor().getAlias() + "." + mapping.getAttributeName();
+        if (mapping.isAbstractDirectMapping())
+          add(indexes, mapping.getDescriptor(), mapping.getFields(), reason);
+        else if (mapping instanceof OneToOneMapping && ((OneToOneMapping) mapping).isForeignKeyRelationship())
+          add(indexes, mapping.getDescriptor(), ((OneToOneMapping) mapping).getForeignKeyFields(), reason);
+      }
+    });
+  }
+
+  /**
+   * Follows a path such as <code>c.address.city</code> from the entity of the
+   * query to the mapping of its last attribute.
+   */
+  private DatabaseMapping mappingOf(QueryKeyExpression key, Session session) {
+    Deque<String> path = new ArrayDeque<>();
+    Expression base = key;
+    while (base instanceof QueryKeyExpression) {
+      path.push(((QueryKeyExpression) base).getName());
+      base = ((QueryKeyExpression) base).getBaseExpression();
+    }
+    if (!(base instanceof ExpressionBuilder) || ((ExpressionBuilder) base).getQueryClass() == null)
+      return null;
+
+    ClassDescriptor descriptor = session.getDescriptor(((ExpressionBuilder) base).getQueryClass());
+    DatabaseMapping mapping = null;
+    for (String attribute : path) {
+      if (descriptor == null)
+        return null;
+      mapping = descriptor.getMappingForAttributeName(attribute);
+      if (mapping == null)
+        return null;
+      descriptor = mapping.getReferenceDescriptor();
+    }
+    return mapping;
+  }
+
+  /**
+   * @param owner the descriptor whose primary key makes the index useless, if
+   *              the columns are in one of its tables
+   */
+  private void add(Map<String, Index> indexes, ClassDescriptor owner, List<DatabaseField> fields, String reason) {
+    if (fields.isEmpty())
+      return;
+    if (owner != null && owner.getPrimaryKeyFields().get(0).equals(fields.get(0)))
+      return;
+    Index index = new Index(fields);
+    indexes.computeIfAbsent(index.getName(), name -> index).reasons.add(reason);
+  }
+
+  private static void write(Collection<Index> indexes, String target) {
+    try (PrintWriter script = new PrintWriter(Files.newBufferedWriter(Paths.get(target)))) {
+      for (Index index : indexes) {
+        for (String reason : index.getReasons())
+          script.println("-- " + reason);
+        script.println(index.toSql());
+      }
+    } catch (IOException e) {
+      throw new PersistenceException("Cannot write the index script " + target, e);
+    }
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  public static class Index {
+
+    private final String table;
+    private final List<String> columns = new ArrayList<>();
+    private final List<String> reasons = new ArrayList<>();
+
+    Index(List<DatabaseField> fields) {
+      this.table = fields.get(0).getTableName();
+      for (DatabaseField field : fields)
+        columns.add(field.getName());
+    }
+
+    public String getName() {
+      return ("IX_" + table + "_" + String.join("_", columns)).toUpperCase();
+    }
+
+    public String getTable() {
+      return table;
+    }
+
+    public List<String> getColumns() {
+      return columns;
+    }
+
+    public List<String> getReasons() {
+      return reasons;
+    }
+
+    public String toSql() {
+      return "CREATE INDEX " + getName() + " ON " + table + " (" + String.join(", ", columns) + ")";
+    }
+  }
+}
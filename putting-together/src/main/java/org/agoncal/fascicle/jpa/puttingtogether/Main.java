@@ -3,7 +3,6 @@ package org.agoncal.fascicle.jpa.puttingtogether;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
-import javax.persistence.Persistence;
 
 /**
  * @author Antonio Goncalves
@@ -20,7 +19,7 @@ public class Main {
     book.tag("sci-fi").tag("fun").tag("geek");
 
     // 2 - Obtains an entity manager and a transaction
-    EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstorePU");
+    EntityManagerFactory emf = MetadataSnapshot.createEntityManagerFactory("cdbookstorePU");
     EntityManager em = emf.createEntityManager();
 
     // 3 - Persists the book to the database
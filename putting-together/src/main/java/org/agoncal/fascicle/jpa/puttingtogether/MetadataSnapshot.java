@@ -0,0 +1,219 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.eclipse.persistence.jpa.metadata.FileBasedProjectCache;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sessions.Project;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Boots a persistence unit from a snapshot of its processed mapping metadata
+ * instead of scanning the classpath and processing annotations again. The
+ * snapshot is the EclipseLink project cache, a serialized project holding the
+ * descriptor of every entity.
+ * <p>
+ * The build writes it with {@link #main(String[])} into the classes, under
+ * <code>META-INF/metadata-snapshot</code>, so that it is packaged with them
+ * and read from the classpath, whether the classes are in a directory or in a
+ * jar. Without such a snapshot, the first boot writes one to a directory, given
+ * by the <code>cdbookstore.metadata-snapshot</code> system property (the
+ * temporary directory by default), and the following boots read it.
+ * <p>
+ * The snapshot name contains a fingerprint of <code>persistence.xml</code> and
+ * of the classes next to it, taken from their names and sizes, which are the
+ * same in a directory and in a jar. So a change to a class or to the unit
+ * starts from a fresh snapshot. Outdated snapshots of the unit are deleted
+ * from the directory.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class MetadataSnapshot {
+
+  public static final String DIRECTORY = "cdbookstore.metadata-snapshot";
+
+  private static final String RESOURCE_DIRECTORY = "META-INF/metadata-snapshot";
+  private static final String RESOURCE = "cdbookstore.metadata-snapshot.resource";
+  private static final String PERSISTENCE_XML = "META-INF/persistence.xml";
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Writes the snapshot of a unit. EclipseLink writes it once deployed, which
+   * needs a login, so the unit is deployed against an empty in-memory database
+   * instead of its own.
+   *
+   * @param args the persistence unit name and the snapshot directory, the
+   *             <code>META-INF/metadata-snapshot</code> directory of the classes
+   */
+  public static void main(String[] args) {
+    String unitName = args.length > 0 ? args[0] : "cdbookstorePU";
+    Path directory = Paths.get(args.length > 1 ? args[1] : "target/classes/" + RESOURCE_DIRECTORY);
+    Map<String, Object> properties = properties(unitName, directory);
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:metadataSnapshot");
+    properties.put("javax.persistence.schema-generation.scripts.action", "none");
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory(unitName, properties);
+    emf.createEntityManager().close();
+    emf.close();
+  }
+
+  public static EntityManagerFactory createEntityManagerFactory(String unitName) {
+    return Persistence.createEntityManagerFactory(unitName, properties(unitName));
+  }
+
+  public static EntityManagerFactory createEntityManagerFactory(String unitName, Path directory) {
+    return Persistence.createEntityManagerFactory(unitName, properties(unitName, directory));
+  }
+
+  /**
+   * @return the snapshot properties of the unit, the snapshot being read from
+   * the classpath, or else from the directory given by the
+   * <code>cdbookstore.metadata-snapshot</code> system property
+   */
+  public static Map<String, Object> properties(String unitName) {
+    return properties(unitName, Paths.get(System.getProperty(DIRECTORY, System.getProperty("java.io.tmpdir") + "/metadata-snapshot")));
+  }
+
+  public static Map<String, Object> properties(String unitName, Path directory) {
+    String name = unitName + "-" + fingerprint() + ".ser";
+    Path snapshot = directory.resolve(name);
+    try {
+      Files.createDirectories(directory);
+      deleteOutdated(unitName, snapshot);
+    } catch (IOException e) {
+      throw new PersistenceException("Cannot prepare the metadata snapshot " + snapshot, e);
+    }
+
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("eclipselink.project-cache", PackagedProjectCache.class.getName());
+    properties.put("eclipselink.project-cache.java-serialization.file-location", snapshot.toString());
+    properties.put(RESOURCE, RESOURCE_DIRECTORY + "/" + name);
+    return properties;
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private static void deleteOutdated(String unitName, Path snapshot) throws IOException {
+    try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(snapshot.getParent(), unitName + "-*.ser")) {
+      for (Path other : snapshots)
+        if (!other.equals(snapshot))
+          Files.delete(other);
+    }
+  }
+
+  /**
+   * Hashes each <code>persistence.xml</code> and its persistence unit root
+   * from the names and sizes of their files only, so that a boot reads no
+   * class: from the file attributes of a directory, and from the central
+   * directory of a jar.
+   */
+  static String fingerprint() {
+    try {
+      long hash = 0;
+      ClassLoader loader = Thread.currentThread().getContextClassLoader();
+      for (URL descriptor : Collections.list(loader.getResources(PERSISTENCE_XML))) {
+        if ("jar".equals(descriptor.getProtocol())) {
+          Path jar = Paths.get(((JarURLConnection) descriptor.openConnection()).getJarFileURL().toURI());
+          hash = mix(hash, hashJar(jar));
+        } else {
+          Path file = Paths.get(descriptor.toURI());
+          hash = mix(hash, hashDirectory(file.getParent().getParent()));
+        }
+      }
+      return String.format("%016x", hash);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Adds up the hashes of the classes and of <code>persistence.xml</code>, as
+   * files are visited in no particular order.
+   */
+  private static long hashDirectory(Path root) throws IOException {
+    long[] sum = new long[1];
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        sum[0] += hashEntry(root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"), attributes.size());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return sum[0];
+  }
+
+  private static long hashJar(Path jar) throws IOException {
+    long sum = 0;
+    try (JarFile file = new JarFile(jar.toFile())) {
+      for (JarEntry entry : Collections.list(file.entries()))
+        sum += hashEntry(entry.getName(), entry.getSize());
+    }
+    return sum;
+  }
+
+  private static long hashEntry(String name, long size) {
+    if (!name.endsWith(".class") && !name.equals(PERSISTENCE_XML))
+      return 0;
+    return mix(mix(0, name.hashCode()), size);
+  }
+
+  // FNV-1a over the 8 bytes of the value
+  private static long mix(long hash, long value) {
+    for (int i = 0; i < 8; i++, value >>>= 8)
+      hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+    return hash;
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  /**
+   * Reads the snapshot packaged with the classes if any, else reads and writes
+   * the snapshot file.
+   */
+  public static class PackagedProjectCache extends FileBasedProjectCache {
+
+    @Override
+    public Project retrieveProject(Map properties, ClassLoader loader, SessionLog log) {
+      Object resource = properties.get(RESOURCE);
+      InputStream packaged = resource == null ? null : loader.getResourceAsStream(resource.toString());
+      if (packaged == null)
+        return super.retrieveProject(properties, loader, log);
+      try (ObjectInputStream in = new ObjectInputStream(packaged)) {
+        return (Project) in.readObject();
+      } catch (IOException | ClassNotFoundException e) {
+        log.logThrowable(SessionLog.WARNING, SessionLog.JPA, e);
+        return super.retrieveProject(properties, loader, log);
+      }
+    }
+  }
+}
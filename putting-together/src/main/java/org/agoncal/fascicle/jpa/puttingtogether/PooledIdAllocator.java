@@ -0,0 +1,67 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+/**
+ * Hi-lo allocator: each thread reserves its own block of ids and then hands
+ * them out without any lock or round trip. Inserting threads only meet when
+ * one of them needs a new block, so the shared counter is updated once every
+ * <code>blockSize</code> ids per thread. Ids are unique but not ordered across
+ * threads, and the unused end of a block is lost when its thread dies.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class PooledIdAllocator implements IdAllocator {
+
+  private final String name;
+  private final int blockSize;
+  private final BlockSource source;
+  // {next id, end of the block (exclusive)}
+  private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public PooledIdAllocator(String name, int blockSize, BlockSource source) {
+    if (blockSize < 1)
+      throw new IllegalArgumentException("Block size of " + name + " must be positive: " + blockSize);
+    this.name = name;
+    this.blockSize = blockSize;
+    this.source = source;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  @Override
+  public long next() {
+    long[] block = blocks.get();
+    if (block[0] == block[1]) {
+      block[0] = source.reserve(name, blockSize);
+      block[1] = block[0] + blockSize;
+    }
+    return block[0]++;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  // ======================================
+  // =            Inner classes           =
+  // ======================================
+
+  /**
+   * Shared counter the blocks are taken from.
+   */
+  @FunctionalInterface
+  public interface BlockSource {
+
+    /**
+     * @return the first id of a block of <code>size</code> ids nobody else owns
+     */
+    long reserve(String name, int size);
+  }
+}
@@ -0,0 +1,47 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 64-bit ids that need no database at all: 41 bits of milliseconds since
+ * 2020-01-01, 10 bits of node id and 12 bits of per-millisecond counter. Ids
+ * grow with time on a node; when a millisecond's 4096 ids are used up (or the
+ * clock goes back) the allocator borrows from the next millisecond rather than
+ * waiting. Every JVM writing to the same tables needs its own node id.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class TimeOrderedIdAllocator implements IdAllocator {
+
+  static final long EPOCH = 1577836800000L;
+  private static final int NODE_BITS = 10;
+  private static final int COUNTER_BITS = 12;
+  private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+  private final long node;
+  // Milliseconds since the epoch shifted left by COUNTER_BITS, plus the counter
+  private final AtomicLong last = new AtomicLong();
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public TimeOrderedIdAllocator(int node) {
+    if (node < 0 || node >= 1 << NODE_BITS)
+      throw new IllegalArgumentException("Node id must be between 0 and " + ((1 << NODE_BITS) - 1) + ": " + node);
+    this.node = node;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  @Override
+  public long next() {
+    long now = (System.currentTimeMillis() - EPOCH) << COUNTER_BITS;
+    long next = last.updateAndGet(previous -> Math.max(now, previous + 1));
+    return (next >>> COUNTER_BITS) << (NODE_BITS + COUNTER_BITS) | node << COUNTER_BITS | (next & COUNTER_MASK);
+  }
+}
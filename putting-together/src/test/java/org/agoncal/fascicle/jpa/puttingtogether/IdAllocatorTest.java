@@ -0,0 +1,114 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class IdAllocatorTest {
+
+  private static final int IDS_PER_THREAD = 10_000;
+
+  // ======================================
+  // =              Methods               =
+  // ======================================
+
+  @Test
+  public void shouldGenerateUniquePooledIdsFrom1To64Threads() throws Exception {
+    AtomicLong counter = new AtomicLong(1);
+    AtomicLong reservations = new AtomicLong();
+    IdAllocator allocator = new PooledIdAllocator("Book", 500, (name, size) -> {
+      reservations.incrementAndGet();
+      return counter.getAndAdd(size);
+    });
+
+    for (int threads = 1; threads <= 64; threads *= 2)
+      assertUniqueIds(allocator, threads);
+    // One reservation per thread and block, not per id
+    assertTrue(reservations.get() < 127 * IDS_PER_THREAD / 100);
+  }
+
+  @Test
+  public void shouldGenerateUniqueTimeOrderedIdsFrom1To64Threads() throws Exception {
+    IdAllocator allocator = new TimeOrderedIdAllocator(42);
+
+    for (int threads = 1; threads <= 64; threads *= 2)
+      assertUniqueIds(allocator, threads);
+  }
+
+  @Test
+  public void shouldGenerateIncreasingTimeOrderedIds() {
+    IdAllocator allocator = new TimeOrderedIdAllocator(1);
+
+    long previous = allocator.next();
+    for (int i = 0; i < 100_000; i++) {
+      long id = allocator.next();
+      assertTrue(id > previous);
+      previous = id;
+    }
+  }
+
+  @Test
+  public void shouldReserveBlocksPerEntity() throws Exception {
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstoreTestPU", Collections.singletonMap(IdSequenceCustomizer.BLOCK_SIZE + ".Author", "10"));
+    EntityManager em = emf.createEntityManager();
+
+    em.getTransaction().begin();
+    Book book = new Book().title("H2G2").price(12.5F).isbn("1-84023-742-8").nbOfPages(354);
+    em.persist(book);
+    Author[] authors = new Author[15];
+    for (int i = 0; i < authors.length; i++) {
+      authors[i] = new Author().firstName("Douglas").lastName("Adams " + i);
+      em.persist(authors[i]);
+    }
+    em.getTransaction().commit();
+
+    // The book comes from a block of 100 ids, the 15 authors from two blocks of 10
+    long nextBook = nextValue(em, "Book");
+    assertTrue(book.getId() >= nextBook - 100 && book.getId() < nextBook);
+    long nextAuthor = nextValue(em, "Author");
+    assertTrue(authors[0].getId() >= nextAuthor - 20 && authors[14].getId() < nextAuthor);
+
+    em.close();
+    emf.close();
+  }
+
+  private long nextValue(EntityManager em, String name) {
+    return ((Number) em.createNativeQuery("SELECT NEXT_VALUE FROM ID_BLOCK WHERE NAME = '" + name + "'").getSingleResult()).longValue();
+  }
+
+  private void assertUniqueIds(IdAllocator allocator, int threads) throws Exception {
+    Set<Long> ids = ConcurrentHashMap.newKeySet();
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < IDS_PER_THREAD; i++)
+          ids.add(allocator.next());
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    assertEquals(threads * IDS_PER_THREAD, ids.size());
+  }
+}
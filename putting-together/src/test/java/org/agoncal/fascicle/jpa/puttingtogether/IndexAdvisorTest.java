@@ -0,0 +1,66 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class IndexAdvisorTest {
+
+  private static EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstoreTestPU");
+
+  @AfterAll
+  static void close() {
+    emf.close();
+  }
+
+  // ======================================
+  // =              Methods               =
+  // ======================================
+
+  @Test
+  void shouldIndexTheColumnsFilteredByNamedQueriesAndTheForeignKeys() {
+    Collection<IndexAdvisor.Index> indexes = new IndexAdvisor().advise(JpaHelper.getServerSession(emf));
+
+    List<String> sql = new ArrayList<>();
+    for (IndexAdvisor.Index index : indexes)
+      sql.add(index.toSql());
+    assertTrue(sql.contains("CREATE INDEX IX_BOOK_TITLE ON BOOK (TITLE)"), sql.toString());
+    assertTrue(sql.contains("CREATE INDEX IX_TAGS_BOOK_FK ON tags (book_fk)"), sql.toString());
+    assertTrue(sql.contains("CREATE INDEX IX_BOOK_CHAPTERS_BOOK_FK ON book_chapters (book_fk)"), sql.toString());
+    assertTrue(sql.contains("CREATE INDEX IX_BOOKS_AUTHORS_BOOK_FK ON books_authors (book_fk)"), sql.toString());
+    assertTrue(sql.contains("CREATE INDEX IX_BOOKS_AUTHORS_AUTHOR_FK ON books_authors (author_fk)"), sql.toString());
+    assertEquals(5, indexes.size(), "Primary keys should not be indexed again: " + sql);
+
+    IndexAdvisor.Index title = indexes.stream().filter(index -> index.getColumns().contains("TITLE")).findFirst().get();
+    assertEquals(1, title.getReasons().size());
+    assertTrue(title.getReasons().contains("findBookH2G2 filters on Book.title"), title.getReasons().toString());
+  }
+
+  @Test
+  void shouldWriteTheIndexScriptOfAUnit() throws Exception {
+    Path script = Files.createTempFile("cdbookstoreIndexes", ".ddl");
+    IndexAdvisor.main(new String[]{"cdbookstorePU", script.toString()});
+
+    List<String> lines = Files.readAllLines(script);
+    int title = lines.indexOf("CREATE INDEX IX_BOOK_TITLE ON BOOK (TITLE)");
+    assertTrue(title > 0, lines.toString());
+    assertEquals("-- findBookH2G2 filters on Book.title", lines.get(title - 1));
+    Files.delete(script);
+  }
+}
@@ -0,0 +1,125 @@
+package org.agoncal.fascicle.jpa.puttingtogether;
+
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class MetadataSnapshotTest {
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldBootFromTheSnapshotWrittenByThePreviousBoot() throws Exception {
+    Path directory = Files.createTempDirectory("metadata-snapshot");
+    Path snapshot = directory.resolve("cdbookstoreTestPU-" + MetadataSnapshot.fingerprint() + ".ser");
+
+    MetadataSnapshot.createEntityManagerFactory("cdbookstoreTestPU", directory).close();
+    assertTrue(Files.size(snapshot) > 0, "The first boot should write the snapshot");
+    long written = Files.getLastModifiedTime(snapshot).toMillis();
+
+    EntityManagerFactory emf = MetadataSnapshot.createEntityManagerFactory("cdbookstoreTestPU", directory);
+    EntityManager em = emf.createEntityManager();
+    assertEquals(2, em.getMetamodel().getEntities().size());
+    em.getTransaction().begin();
+    em.persist(new Book().title("H2G2").price(12.5F).isbn("1-9754-742-3").nbOfPages(354));
+    em.getTransaction().commit();
+    assertEquals(1, em.createNamedQuery("findAllBooks", Book.class).getResultList().size());
+    em.close();
+    emf.close();
+
+    assertEquals(written, Files.getLastModifiedTime(snapshot).toMillis(), "The second boot should only read the snapshot");
+  }
+
+  @Test
+  public void shouldDeleteOutdatedSnapshots() throws Exception {
+    Path directory = Files.createTempDirectory("metadata-snapshot");
+    Path outdated = Files.createFile(directory.resolve("cdbookstoreTestPU-0123456789abcdef.ser"));
+    Path otherUnit = Files.createFile(directory.resolve("cdbookstorePU-0123456789abcdef.ser"));
+
+    MetadataSnapshot.properties("cdbookstoreTestPU", directory);
+
+    assertFalse(Files.exists(outdated));
+    assertTrue(Files.exists(otherUnit));
+    assertEquals(MetadataSnapshot.fingerprint(), MetadataSnapshot.fingerprint());
+  }
+
+  @Test
+  public void shouldChangeTheFingerprintWhenAClassChanges() throws Exception {
+    Path book = Paths.get(Book.class.getResource("Book.class").toURI());
+    byte[] compiled = Files.readAllBytes(book);
+    String fingerprint = MetadataSnapshot.fingerprint();
+
+    Files.write(book, new byte[1], StandardOpenOption.APPEND);
+    try {
+      assertNotEquals(fingerprint, MetadataSnapshot.fingerprint());
+    } finally {
+      Files.write(book, compiled);
+    }
+    assertEquals(fingerprint, MetadataSnapshot.fingerprint());
+  }
+
+  @Test
+  public void shouldBootFromTheSnapshotPackagedByTheBuild() throws Exception {
+    Path classes = Paths.get(Book.class.getResource("/META-INF/persistence.xml").toURI()).getParent().getParent();
+    String snapshot = "META-INF/metadata-snapshot/cdbookstorePU-" + MetadataSnapshot.fingerprint() + ".ser";
+    assertTrue(Files.exists(classes.resolve(snapshot)), "The build should write the snapshot into the classes");
+
+    Path directory = Files.createTempDirectory("metadata-snapshot");
+    Map<String, Object> properties = MetadataSnapshot.properties("cdbookstorePU", directory);
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:packagedSnapshot");
+    properties.put("javax.persistence.schema-generation.scripts.action", "none");
+    EntityManagerFactory emf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+    EntityManager em = emf.createEntityManager();
+    assertEquals(2, em.getMetamodel().getEntities().size());
+    em.close();
+    emf.close();
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(0, files.count(), "The packaged snapshot should be read, not written again");
+    }
+
+    // The classes packaged in a jar, with their snapshot, have the same fingerprint
+    Path jar = Files.createTempFile("putting-together", ".jar");
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+         Stream<Path> files = Files.walk(classes)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        out.putNextEntry(new JarEntry(classes.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/")));
+        Files.copy(file, out);
+        out.closeEntry();
+      }
+    }
+    Thread thread = Thread.currentThread();
+    ClassLoader loader = thread.getContextClassLoader();
+    try (URLClassLoader packaged = new URLClassLoader(new URL[]{jar.toUri().toURL()}, loader.getParent())) {
+      thread.setContextClassLoader(packaged);
+      assertEquals(snapshot, MetadataSnapshot.properties("cdbookstorePU", Files.createTempDirectory("metadata-snapshot")).get("cdbookstore.metadata-snapshot.resource"));
+      assertNotNull(packaged.getResource(snapshot));
+    } finally {
+      thread.setContextClassLoader(loader);
+    }
+  }
+}
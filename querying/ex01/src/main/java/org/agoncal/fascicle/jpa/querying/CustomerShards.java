@@ -0,0 +1,523 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.expressions.Expression;
+import org.eclipse.persistence.expressions.ExpressionBuilder;
+import org.eclipse.persistence.expressions.ExpressionOperator;
+import org.eclipse.persistence.internal.expressions.FieldExpression;
+import org.eclipse.persistence.internal.expressions.FunctionExpression;
+import org.eclipse.persistence.internal.expressions.QueryKeyExpression;
+import org.eclipse.persistence.internal.queries.ReportItem;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.ReadAllQuery;
+import org.eclipse.persistence.queries.ReportQuery;
+import org.eclipse.persistence.queries.ReportQueryResult;
+import org.eclipse.persistence.sequencing.DefaultSequence;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.eclipse.persistence.sequencing.TableSequence;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.Persistence;
+import javax.persistence.TypedQuery;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Spreads customers, with their address and country, over several databases,
+ * each one the same persistence unit with its own
+ * <code>javax.persistence.jdbc.url</code>.
+ * <p>
+ * A new customer goes to the shard of its country code, customers without a
+ * country to the first shard. Each shard generates ids in its own range of
+ * {@link #ID_RANGE} values, so an id is enough to find the shard of an
+ * existing customer.
+ * <p>
+ * JPQL queries run on all shards in parallel. Their results are merged: rows
+ * are put back in the <code>ORDER BY</code> of the query, <code>DISTINCT</code>
+ * rows appear once, and <code>COUNT</code>, <code>SUM</code>, <code>MIN</code>
+ * and <code>MAX</code> are combined per <code>GROUP BY</code> value, then
+ * ordered by any selected item, aggregates included. <code>AVG</code>,
+ * <code>COUNT(DISTINCT ...)</code> and <code>HAVING</code> cannot be computed
+ * from the results of each shard and are rejected.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class CustomerShards implements AutoCloseable {
+
+  public static final long ID_RANGE = 1L << 40;
+
+  private final List<EntityManagerFactory> shards = new ArrayList<>();
+  private final ExecutorService executor;
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  public CustomerShards(String unitName, String... urls) {
+    for (int i = 0; i < urls.length; i++) {
+      Map<String, Object> properties = new HashMap<>();
+      properties.put("javax.persistence.jdbc.url", urls[i]);
+      properties.put("eclipselink.session-name", unitName + "-shard" + i);
+      EntityManagerFactory emf = Persistence.createEntityManagerFactory(unitName, properties);
+      shards.add(emf);
+      startIdsAt(emf, i * ID_RANGE);
+    }
+    this.executor = Executors.newFixedThreadPool(urls.length);
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public int shardOf(String countryCode) {
+    return countryCode == null ? 0 : Math.floorMod(countryCode.hashCode(), shards.size());
+  }
+
+  public int shardOf(Long id) {
+    return (int) (id / ID_RANGE);
+  }
+
+  /**
+   * Persists the customers in one transaction per shard, so that customers of
+   * a shard can share their country.
+   */
+  public void persist(Customer... customers) {
+    Map<Integer, List<Customer>> byShard = new LinkedHashMap<>();
+    for (Customer customer : customers)
+      byShard.computeIfAbsent(shardOf(countryCodeOf(customer)), shard -> new ArrayList<>()).add(customer);
+    List<CompletableFuture<Void>> persisted = new ArrayList<>();
+    for (Map.Entry<Integer, List<Customer>> entry : byShard.entrySet())
+      persisted.add(CompletableFuture.runAsync(() -> inTransaction(entry.getKey(), em -> {
+        entry.getValue().forEach(em::persist);
+        return null;
+      }), executor));
+    persisted.forEach(this::join);
+  }
+
+  public Customer find(Long id) {
+    int shard = shardOf(id);
+    if (shard < 0 || shard >= shards.size())
+      return null;
+    EntityManager em = shards.get(shard).createEntityManager();
+    try {
+      return em.find(Customer.class, id);
+    } finally {
+      em.close();
+    }
+  }
+
+  /**
+   * Merges an existing customer into its shard, which stays the same even if
+   * its country changed. A new customer is placed by its country.
+   */
+  public Customer merge(Customer customer) {
+    int shard = customer.getId() == null ? shardOf(countryCodeOf(customer)) : shardOf(customer.getId());
+    return inTransaction(shard, em -> em.merge(customer));
+  }
+
+  public <T> ShardedQuery<T> createQuery(String jpql, Class<T> resultClass) {
+    return new ShardedQuery<>(jpql, resultClass);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    shards.forEach(EntityManagerFactory::close);
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private static String countryCodeOf(Customer customer) {
+    if (customer.getAddress() == null || customer.getAddress().getCountry() == null)
+      return null;
+    return customer.getAddress().getCountry().getCode();
+  }
+
+  /**
+   * Moves the sequence of a shard to the start of its range, unless it is
+   * already past it.
+   */
+  private static void startIdsAt(EntityManagerFactory emf, long start) {
+    if (start == 0)
+      return;
+    Sequence sequence = JpaHelper.getServerSession(emf).getDescriptor(Customer.class).getSequence();
+    String name = sequence.getName();
+    // The default sequence keeps its name but uses the table of the login
+    if (sequence instanceof DefaultSequence)
+      sequence = ((DefaultSequence) sequence).getDefaultSequence();
+    if (!(sequence instanceof TableSequence))
+      throw new IllegalStateException("Customer ids are not generated from a table but from " + sequence);
+    TableSequence table = (TableSequence) sequence;
+    EntityManager em = emf.createEntityManager();
+    try {
+      em.getTransaction().begin();
+      em.createNativeQuery("UPDATE " + table.getTableName() + " SET " + table.getCounterFieldName() + " = ?1 WHERE " + table.getNameFieldName() + " = ?2 AND " + table.getCounterFieldName() + " < ?1")
+        .setParameter(1, start)
+        .setParameter(2, name)
+        .executeUpdate();
+      em.getTransaction().commit();
+    } finally {
+      em.close();
+    }
+  }
+
+  private <R> R inTransaction(int shard, Function<EntityManager, R> work) {
+    EntityManager em = shards.get(shard).createEntityManager();
+    try {
+      em.getTransaction().begin();
+      R result = work.apply(em);
+      em.getTransaction().commit();
+      return result;
+    } finally {
+      if (em.getTransaction().isActive())
+        em.getTransaction().rollback();
+      em.close();
+    }
+  }
+
+  private <R> R join(CompletableFuture<R> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw e;
+    }
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  /**
+   * A JPQL query run on every shard.
+   */
+  public class ShardedQuery<T> {
+
+    private final String jpql;
+    private final Class<T> resultClass;
+    private final Map<Object, Object> parameters = new LinkedHashMap<>();
+    private int firstResult;
+    private int maxResults = Integer.MAX_VALUE;
+
+    private ShardedQuery(String jpql, Class<T> resultClass) {
+      this.jpql = jpql;
+      this.resultClass = resultClass;
+    }
+
+    public ShardedQuery<T> setParameter(String name, Object value) {
+      parameters.put(name, value);
+      return this;
+    }
+
+    public ShardedQuery<T> setParameter(int position, Object value) {
+      parameters.put(position, value);
+      return this;
+    }
+
+    public ShardedQuery<T> setFirstResult(int firstResult) {
+      this.firstResult = firstResult;
+      return this;
+    }
+
+    public ShardedQuery<T> setMaxResults(int maxResults) {
+      this.maxResults = maxResults;
+      return this;
+    }
+
+    public List<T> getResultList() {
+      Merger merger = new Merger((AbstractSession) JpaHelper.getServerSession(shards.get(0)));
+      // Each shard returns enough rows for the requested page once merged,
+      // but all its groups, as a group may have rows in every shard
+      int perShard = maxResults == Integer.MAX_VALUE || merger.aggregates() ? Integer.MAX_VALUE : firstResult + maxResults;
+      List<CompletableFuture<List<T>>> results = new ArrayList<>();
+      for (int i = 0; i < shards.size(); i++) {
+        int shard = i;
+        results.add(CompletableFuture.supplyAsync(() -> run(shard, perShard), executor));
+      }
+      List<T> merged = new ArrayList<>();
+      results.forEach(result -> merged.addAll(join(result)));
+
+      List<T> rows = merger.merge(merged);
+      if (firstResult >= rows.size())
+        return new ArrayList<>();
+      return new ArrayList<>(rows.subList(firstResult, (int) Math.min(rows.size(), (long) firstResult + maxResults)));
+    }
+
+    public T getSingleResult() {
+      List<T> rows = getResultList();
+      if (rows.isEmpty())
+        throw new NoResultException("No result for " + jpql);
+      if (rows.size() > 1)
+        throw new NonUniqueResultException(rows.size() + " results for " + jpql);
+      return rows.get(0);
+    }
+
+    private List<T> run(int shard, int maxResults) {
+      EntityManager em = shards.get(shard).createEntityManager();
+      try {
+        TypedQuery<T> query = em.createQuery(jpql, resultClass).setMaxResults(maxResults);
+        for (Map.Entry<Object, Object> parameter : parameters.entrySet())
+          if (parameter.getKey() instanceof Integer)
+            query.setParameter((Integer) parameter.getKey(), parameter.getValue());
+          else
+            query.setParameter((String) parameter.getKey(), parameter.getValue());
+        return query.getResultList();
+      } finally {
+        em.close();
+      }
+    }
+
+    /**
+     * Merges the rows of all shards the way the database would have returned
+     * them from a single table.
+     */
+    private class Merger {
+
+      private final AbstractSession session;
+      private final ReadAllQuery query;
+      private final List<Expression> items = new ArrayList<>();
+
+      Merger(AbstractSession session) {
+        this.session = session;
+        EntityManager em = shards.get(0).createEntityManager();
+        try {
+          DatabaseQuery parsed = JpaHelper.getDatabaseQuery(em.createQuery(jpql));
+          if (!(parsed instanceof ReadAllQuery))
+            throw new IllegalArgumentException("Only select queries can run on all shards: " + jpql);
+          this.query = (ReadAllQuery) parsed;
+        } finally {
+          em.close();
+        }
+        if (query.isReportQuery()) {
+          for (Object item : ((ReportQuery) query).getItems())
+            items.add(((ReportItem) item).getAttributeExpression());
+          // The groups of a shard are partial, filtering them drops or keeps the wrong ones
+          if (((ReportQuery) query).getHavingExpression() != null)
+            throw new IllegalArgumentException("Cannot filter groups with HAVING over shards: " + jpql);
+        }
+      }
+
+      boolean aggregates() {
+        return items.stream().anyMatch(item -> aggregateOf(item) != null);
+      }
+
+      List<T> merge(List<T> rows) {
+        if (aggregates())
+          rows = aggregate(rows);
+        else if (query.isReportQuery() && ((ReportQuery) query).shouldDistinctBeUsed())
+          rows = distinct(rows);
+        Comparator<T> order = order();
+        if (order != null)
+          rows.sort(order);
+        return rows;
+      }
+
+      private List<T> distinct(List<T> rows) {
+        Map<Object, T> distinct = new LinkedHashMap<>();
+        for (T row : rows)
+          distinct.putIfAbsent(key(row), row);
+        return new ArrayList<>(distinct.values());
+      }
+
+      /**
+       * Combines the aggregates of the rows having the same values for the
+       * other items, which are the <code>GROUP BY</code> values.
+       */
+      @SuppressWarnings("unchecked")
+      private List<T> aggregate(List<T> rows) {
+        Map<List<Object>, Object[]> groups = new LinkedHashMap<>();
+        for (T row : rows) {
+          Object[] values = valuesOf(row);
+          List<Object> group = new ArrayList<>();
+          for (int i = 0; i < values.length; i++)
+            if (aggregateOf(items.get(i)) == null)
+              group.add(values[i]);
+          Object[] combined = groups.get(group);
+          if (combined == null) {
+            groups.put(group, values.clone());
+            continue;
+          }
+          for (int i = 0; i < values.length; i++)
+            combined[i] = combine(aggregateOf(items.get(i)), combined[i], values[i]);
+        }
+        List<T> merged = new ArrayList<>();
+        for (Object[] values : groups.values())
+          merged.add((T) (values.length == 1 ? values[0] : values));
+        return merged;
+      }
+
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      private Object combine(ExpressionOperator aggregate, Object left, Object right) {
+        if (aggregate == null || right == null)
+          return left;
+        if (left == null)
+          return right;
+        switch (aggregate.getSelector()) {
+          case ExpressionOperator.Count:
+          case ExpressionOperator.Sum:
+            return add((Number) left, (Number) right);
+          case ExpressionOperator.Minimum:
+            return ((Comparable) left).compareTo(right) <= 0 ? left : right;
+          case ExpressionOperator.Maximum:
+            return ((Comparable) left).compareTo(right) >= 0 ? left : right;
+          default:
+            throw new IllegalArgumentException("Cannot combine " + aggregate + " over shards: " + jpql);
+        }
+      }
+
+      private Number add(Number left, Number right) {
+        if (left instanceof Long || left instanceof Integer)
+          return left.longValue() + right.longValue();
+        if (left instanceof BigDecimal)
+          return ((BigDecimal) left).add(new BigDecimal(right.toString()));
+        if (left instanceof BigInteger)
+          return ((BigInteger) left).add(new BigInteger(right.toString()));
+        return left.doubleValue() + right.doubleValue();
+      }
+
+      private ExpressionOperator aggregateOf(Expression item) {
+        if (!(item instanceof FunctionExpression))
+          return null;
+        ExpressionOperator operator = ((FunctionExpression) item).getOperator();
+        switch (operator.getSelector()) {
+          case ExpressionOperator.Count:
+            // A value found in several shards would be counted once per shard
+            for (Object child : ((FunctionExpression) item).getChildren())
+              if (child instanceof FunctionExpression && ((FunctionExpression) child).getOperator().getSelector() == ExpressionOperator.Distinct)
+                throw new IllegalArgumentException("Cannot combine COUNT(DISTINCT) over shards: " + jpql);
+            return operator;
+          case ExpressionOperator.Sum:
+          case ExpressionOperator.Minimum:
+          case ExpressionOperator.Maximum:
+            return operator;
+          case ExpressionOperator.Average:
+          case ExpressionOperator.StandardDeviation:
+          case ExpressionOperator.Variance:
+            throw new IllegalArgumentException("Cannot combine " + operator + " over shards: " + jpql);
+          default:
+            return null;
+        }
+      }
+
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      private Comparator<T> order() {
+        Comparator<T> order = null;
+        for (Object each : query.getOrderByExpressions()) {
+          Expression expression = (Expression) each;
+          boolean descending = false;
+          if (expression instanceof FunctionExpression) {
+            int selector = ((FunctionExpression) expression).getOperator().getSelector();
+            descending = selector == ExpressionOperator.Descending;
+            if (selector == ExpressionOperator.Descending || selector == ExpressionOperator.Ascending)
+              expression = ((FunctionExpression) expression).getBaseExpression();
+          }
+          Function<T, Comparable> value = valueOf(expression);
+          Comparator<T> next = Comparator.comparing(value, Comparator.nullsFirst(Comparator.naturalOrder()));
+          if (descending)
+            next = next.reversed();
+          order = order == null ? next : order.thenComparing(next);
+        }
+        return order;
+      }
+
+      /**
+       * Finds an <code>ORDER BY</code> value either among the selected items,
+       * aggregates and result variables included, or on the selected entity.
+       */
+      @SuppressWarnings("rawtypes")
+      private Function<T, Comparable> valueOf(Expression expression) {
+        for (int i = 0; i < items.size(); i++)
+          if (sameItem(expression, items.get(i))) {
+            int index = i;
+            return row -> (Comparable) valuesOf(row)[index];
+          }
+        List<String> path = pathOf(expression);
+        if (path == null || query.isReportQuery())
+          throw new IllegalArgumentException("Cannot order the rows of all shards by " + expression + ": " + jpql);
+        return row -> (Comparable) attributeOf(row, path);
+      }
+
+      /**
+       * Compares an <code>ORDER BY</code> expression to a selected item, the
+       * parser building them apart unless ordered by a result variable, and
+       * preparing the selected items only.
+       */
+      private boolean sameItem(Expression expression, Expression item) {
+        if (expression == item)
+          return true;
+        if (expression instanceof FunctionExpression && item instanceof FunctionExpression) {
+          FunctionExpression function = (FunctionExpression) expression;
+          FunctionExpression other = (FunctionExpression) item;
+          if (function.getOperator().getSelector() != other.getOperator().getSelector() || function.getChildren().size() != other.getChildren().size())
+            return false;
+          for (int i = 0; i < function.getChildren().size(); i++)
+            if (!sameItem((Expression) function.getChildren().get(i), (Expression) other.getChildren().get(i)))
+              return false;
+          return true;
+        }
+        if (expression instanceof FieldExpression && item instanceof FieldExpression)
+          return ((FieldExpression) expression).getField().equals(((FieldExpression) item).getField());
+        // COUNT(c) is selected as the count of the id of c
+        if (expression instanceof ExpressionBuilder && item instanceof FieldExpression && ((ExpressionBuilder) expression).getQueryClass() != null)
+          return session.getDescriptor(((ExpressionBuilder) expression).getQueryClass()).getPrimaryKeyFields().contains(((FieldExpression) item).getField());
+        List<String> path = pathOf(expression);
+        return path != null && path.equals(pathOf(item));
+      }
+
+      private List<String> pathOf(Expression expression) {
+        List<String> path = new ArrayList<>();
+        while (expression instanceof QueryKeyExpression) {
+          path.add(0, ((QueryKeyExpression) expression).getName());
+          expression = ((QueryKeyExpression) expression).getBaseExpression();
+        }
+        return expression instanceof ExpressionBuilder ? path : null;
+      }
+
+      private Object attributeOf(Object entity, List<String> path) {
+        for (String attribute : path) {
+          if (entity == null)
+            return null;
+          ClassDescriptor descriptor = session.getDescriptor(entity.getClass());
+          DatabaseMapping mapping = descriptor.getMappingForAttributeName(attribute);
+          entity = mapping.getRealAttributeValueFromObject(entity, session);
+        }
+        return entity;
+      }
+
+      private Object[] valuesOf(T row) {
+        if (row instanceof Object[])
+          return (Object[]) row;
+        if (row instanceof ReportQueryResult)
+          return ((ReportQueryResult) row).toArray();
+        return new Object[]{row};
+      }
+
+      private Object key(T row) {
+        return row instanceof Object[] ? Arrays.asList((Object[]) row) : row;
+      }
+    }
+  }
+}
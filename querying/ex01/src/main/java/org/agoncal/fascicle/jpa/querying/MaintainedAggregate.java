@@ -0,0 +1,425 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.descriptors.DescriptorEventListener;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.internal.sessions.DirectToFieldChangeRecord;
+import org.eclipse.persistence.internal.sessions.ObjectChangeSet;
+import org.eclipse.persistence.internal.sessions.ObjectReferenceChangeRecord;
+import org.eclipse.persistence.internal.sessions.RepeatableWriteUnitOfWork;
+import org.eclipse.persistence.internal.sessions.UnitOfWorkImpl;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.mappings.DatabaseMapping;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.changesets.ChangeRecord;
+import org.eclipse.persistence.sessions.changesets.UnitOfWorkChangeSet;
+import org.eclipse.persistence.sessions.server.Server;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps in memory the result of a <code>COUNT</code> or <code>SUM</code>
+ * query grouped by a path of an entity, such as the number of customers per
+ * country code:
+ * <pre>
+ * MaintainedAggregate&lt;String&gt; customersPerCountry = MaintainedAggregate.count(emf, Customer.class, "address.country.code");
+ * long french = customersPerCountry.get("FR");
+ * </pre>
+ * The aggregate is computed once by the database, then each committed insert,
+ * delete or update of the entity adds its difference to the group it belongs
+ * to, so that reading a group is a map lookup. Like the query, an entity whose
+ * path reaches a <code>null</code> is in no group.
+ * <p>
+ * Changes made by bulk JPQL updates and deletes, or to the entities along the
+ * path (an address moving to another country), are not seen by the aggregate:
+ * {@link #reconcile()} computes it again from the database, and
+ * {@link #reconcileEvery(Duration)} does so periodically. An update whose
+ * previous group cannot be told, neither from its change set nor from the
+ * shared cache, also reconciles the aggregate once committed.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class MaintainedAggregate<K> implements AutoCloseable {
+
+  private static final AtomicLong AGGREGATES = new AtomicLong();
+  // A path whose value before the update cannot be told
+  private static final Object UNKNOWN = new Object();
+
+  private final EntityManagerFactory emf;
+  private final ClassDescriptor descriptor;
+  private final String groupBy;
+  private final String summed;
+  // A commit holds the read lock from the start of its unit of work commit
+  // until its differences are applied, never while a flushed transaction is
+  // left open, a reconciliation reads the database holding the write lock, so
+  // that each commit is counted either by the query or after
+  private final ReadWriteLock commits = new ReentrantReadWriteLock();
+  private volatile Map<Object, Group> groups = new ConcurrentHashMap<>();
+  private ScheduledExecutorService reconciler;
+
+  // The differences of an aggregate are a property of the unit of work
+  private final String differencesKey = MaintainedAggregate.class.getName() + "." + AGGREGATES.incrementAndGet();
+
+  // Every entity manager of the factory writes through the descriptor, which
+  // turns each insert, update and delete into differences of its unit of work
+  private final DescriptorEventListener listener = new DescriptorEventAdapter() {
+    @Override
+    public void postInsert(DescriptorEvent event) {
+      Object entity = event.getObject();
+      differencesOf(event.getSession()).add(groupOf(entity, event.getSession()), 1, valueOf(entity, event.getSession()));
+    }
+
+    @Override
+    public void postUpdate(DescriptorEvent event) {
+      Object entity = event.getObject();
+      Differences differences = differencesOf(event.getSession());
+      ObjectChangeSet changes = changesOf(event);
+      Object group = UNKNOWN;
+      Object value = UNKNOWN;
+      if (changes != null) {
+        group = navigateBefore(entity, groupBy, changes, event.getSession());
+        value = summed == null ? null : navigateBefore(entity, summed, changes, event.getSession());
+      }
+      Object committed = group == UNKNOWN || value == UNKNOWN ? committedVersionOf(entity) : null;
+      if (committed != null) {
+        group = groupOf(committed, server());
+        value = summed == null ? null : navigate(committed, summed, server());
+      }
+      if (group == UNKNOWN || value == UNKNOWN) {
+        differences.reconcileOnceCommitted();
+        return;
+      }
+      differences.add(group, -1, -toLong(value));
+      differences.add(groupOf(entity, event.getSession()), 1, valueOf(entity, event.getSession()));
+    }
+
+    @Override
+    public void postDelete(DescriptorEvent event) {
+      Object committed = committedVersionOf(event.getObject());
+      Object entity = committed == null ? event.getObject() : committed;
+      Session session = committed == null ? event.getSession() : server();
+      differencesOf(event.getSession()).add(groupOf(entity, session), -1, -valueOf(entity, session));
+    }
+  };
+
+  // ======================================
+  // =            Constructors            =
+  // ======================================
+
+  private MaintainedAggregate(EntityManagerFactory emf, Class<?> entity, String groupBy, String summed) {
+    this.emf = emf;
+    this.descriptor = server().getDescriptor(entity);
+    if (descriptor == null)
+      throw new IllegalArgumentException(entity.getName() + " is not an entity");
+    this.groupBy = groupBy;
+    this.summed = summed;
+  }
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * Maintains <code>SELECT e.groupBy, COUNT(e) FROM Entity e GROUP BY e.groupBy</code>.
+   *
+   * @param groupBy the path grouping the entities, such as
+   *                <code>address.country.code</code>
+   */
+  public static <K> MaintainedAggregate<K> count(EntityManagerFactory emf, Class<?> entity, String groupBy) {
+    return maintain(new MaintainedAggregate<>(emf, entity, groupBy, null));
+  }
+
+  /**
+   * Maintains <code>SELECT e.groupBy, SUM(e.summed) FROM Entity e GROUP BY e.groupBy</code>.
+   *
+   * @param summed the path of a whole number, a <code>null</code> one being
+   *               summed as zero
+   */
+  public static <K> MaintainedAggregate<K> sum(EntityManagerFactory emf, Class<?> entity, String groupBy, String summed) {
+    return maintain(new MaintainedAggregate<>(emf, entity, groupBy, summed));
+  }
+
+  /**
+   * @return the count, or the sum, of the group, 0 if it has no entity
+   */
+  public long get(K group) {
+    Group found = groups.get(group);
+    return found == null ? 0 : summed == null ? found.count.sum() : found.sum.sum();
+  }
+
+  /**
+   * @return the count, or the sum, of each group that has entities
+   */
+  @SuppressWarnings("unchecked")
+  public Map<K, Long> asMap() {
+    Map<K, Long> map = new HashMap<>();
+    groups.forEach((group, found) -> {
+      if (found.count.sum() > 0)
+        map.put((K) group, summed == null ? found.count.sum() : found.sum.sum());
+    });
+    return map;
+  }
+
+  /**
+   * Computes the aggregate again from the database. Commits changing the
+   * entity wait for the query to end, transactions that only flushed their
+   * changes do not hold it up.
+   */
+  public void reconcile() {
+    String alias = descriptor.getAlias();
+    String jpql = "SELECT e." + groupBy + ", COUNT(e)" + (summed == null ? "" : ", SUM(e." + summed + ")") +
+      " FROM " + alias + " e GROUP BY e." + groupBy;
+    EntityManager em = emf.createEntityManager();
+    commits.writeLock().lock();
+    try {
+      Map<Object, Group> reconciled = new ConcurrentHashMap<>();
+      for (Object[] row : em.createQuery(jpql, Object[].class).getResultList()) {
+        if (row[0] == null)
+          continue;
+        Group group = new Group();
+        group.count.add(((Number) row[1]).longValue());
+        if (summed != null && row[2] != null)
+          group.sum.add(((Number) row[2]).longValue());
+        reconciled.put(row[0], group);
+      }
+      groups = reconciled;
+    } finally {
+      commits.writeLock().unlock();
+      em.close();
+    }
+  }
+
+  /**
+   * Reconciles the aggregate in the background, until closed.
+   */
+  public synchronized MaintainedAggregate<K> reconcileEvery(Duration period) {
+    if (reconciler == null)
+      reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reconcile-" + descriptor.getAlias() + "-" + groupBy);
+        thread.setDaemon(true);
+        return thread;
+      });
+    reconciler.scheduleWithFixedDelay(this::reconcile, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  @Override
+  public synchronized void close() {
+    descriptor.getEventManager().removeListener(listener);
+    if (reconciler != null)
+      reconciler.shutdownNow();
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  private static <K> MaintainedAggregate<K> maintain(MaintainedAggregate<K> aggregate) {
+    // Listens first, the reconciliation then waits for the commits in progress
+    aggregate.descriptor.getEventManager().addListener(aggregate.listener);
+    aggregate.reconcile();
+    return aggregate;
+  }
+
+  private Server server() {
+    return JpaHelper.getServerSession(emf);
+  }
+
+  /**
+   * @return the entity as committed in the shared cache, not yet merged with
+   * the changes of the unit of work, or null if it is not cached
+   */
+  private Object committedVersionOf(Object clone) {
+    return server().getIdentityMapAccessor().getFromIdentityMap(clone);
+  }
+
+  /**
+   * @return the changes of the updated entity, that the event leaves out when
+   * only a relationship table changed
+   */
+  private ObjectChangeSet changesOf(DescriptorEvent event) {
+    if (event.getChangeSet() != null)
+      return event.getChangeSet();
+    UnitOfWorkChangeSet uowChanges = ((UnitOfWorkImpl) event.getSession()).getUnitOfWorkChangeSet();
+    return uowChanges == null ? null : (ObjectChangeSet) uowChanges.getObjectChangeSetForClone(event.getObject());
+  }
+
+  private Object groupOf(Object entity, Session session) {
+    return navigate(entity, groupBy, session);
+  }
+
+  private long valueOf(Object entity, Session session) {
+    return summed == null ? 0 : toLong(navigate(entity, summed, session));
+  }
+
+  private static long toLong(Object value) {
+    return value == null ? 0 : ((Number) value).longValue();
+  }
+
+  private Object navigate(Object entity, String path, Session session) {
+    return navigate(entity, path.split("\\."), 0, descriptor, session);
+  }
+
+  /**
+   * @return the value the path had before the update: the first attribute is
+   * read from the old value of the change set if it changed, UNKNOWN if the
+   * change set has no old value for it
+   */
+  private Object navigateBefore(Object entity, String path, ObjectChangeSet changes, Session session) {
+    String[] attributes = path.split("\\.");
+    ChangeRecord change = changes.getChangesForAttributeNamed(attributes[0]);
+    if (change == null)
+      return navigate(entity, attributes, 0, descriptor, session);
+
+    DatabaseMapping mapping = mappingOf(descriptor, attributes[0], path);
+    Object before;
+    if (change instanceof DirectToFieldChangeRecord)
+      before = ((DirectToFieldChangeRecord) change).getOldValue();
+    else if (change instanceof ObjectReferenceChangeRecord)
+      before = ((ObjectReferenceChangeRecord) change).getOldValue();
+    else
+      return UNKNOWN;
+    return navigate(before, attributes, 1, mapping.getReferenceDescriptor(), session);
+  }
+
+  private Object navigate(Object from, String[] attributes, int first, ClassDescriptor fromDescriptor, Session session) {
+    Object value = from;
+    ClassDescriptor current = fromDescriptor;
+    for (int i = first; i < attributes.length; i++) {
+      if (value == null)
+        return null;
+      DatabaseMapping mapping = mappingOf(current, attributes[i], String.join(".", attributes));
+      value = mapping.getRealAttributeValueFromObject(value, (AbstractSession) session);
+      current = mapping.getReferenceDescriptor();
+    }
+    return value;
+  }
+
+  private static DatabaseMapping mappingOf(ClassDescriptor descriptor, String attribute, String path) {
+    DatabaseMapping mapping = descriptor.getMappingForAttributeName(attribute);
+    if (mapping == null)
+      throw new IllegalArgumentException("No attribute " + attribute + " in " + path);
+    return mapping;
+  }
+
+  /**
+   * @return the differences written by the unit of work so far, registered
+   * for its commit events the first time
+   */
+  private Differences differencesOf(Session uow) {
+    Differences differences = (Differences) uow.getProperty(differencesKey);
+    if (differences == null) {
+      differences = new Differences();
+      uow.setProperty(differencesKey, differences);
+      uow.getEventManager().addListener(differences);
+    }
+    return differences;
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  private static class Group {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+  }
+
+  /**
+   * The count and sum differences, per group, written by one unit of work. As
+   * a flushed unit of work may still roll back, they are applied to the groups
+   * only after its commit, and dropped otherwise. An entity manager reuses its
+   * unit of work from one transaction to the next, and so its differences.
+   */
+  private class Differences extends SessionEventAdapter {
+
+    private final Map<Object, long[]> byGroup = new LinkedHashMap<>();
+    private boolean reconcile;
+    private boolean locked;
+
+    void add(Object group, long count, long sum) {
+      if (group == null)
+        return;
+      long[] difference = byGroup.computeIfAbsent(group, key -> new long[2]);
+      difference[0] += count;
+      difference[1] += sum;
+    }
+
+    void reconcileOnceCommitted() {
+      reconcile = true;
+    }
+
+    // Raised when the unit of work starts committing, or flushing
+    @Override
+    public void preCommitUnitOfWork(SessionEvent event) {
+      lockIfCommitting(event.getSession());
+    }
+
+    // Raised once the changes are written, the last chance before the
+    // transaction commits if the first changes were written by the commit
+    @Override
+    public void prepareUnitOfWork(SessionEvent event) {
+      lockIfCommitting(event.getSession());
+    }
+
+    @Override
+    public void postCommitUnitOfWork(SessionEvent event) {
+      Map<Object, Group> current = groups;
+      byGroup.forEach((key, difference) -> {
+        Group group = current.computeIfAbsent(key, any -> new Group());
+        group.count.add(difference[0]);
+        group.sum.add(difference[1]);
+      });
+      boolean stale = reconcile;
+      discard();
+      if (stale)
+        reconcile();
+    }
+
+    @Override
+    public void postRollbackTransaction(SessionEvent event) {
+      discard();
+    }
+
+    @Override
+    public void postReleaseUnitOfWork(SessionEvent event) {
+      discard();
+    }
+
+    private void lockIfCommitting(Session uow) {
+      boolean flushing = uow instanceof RepeatableWriteUnitOfWork && ((RepeatableWriteUnitOfWork) uow).isWithinFlush();
+      if (!flushing && !locked && !byGroup.isEmpty()) {
+        commits.readLock().lock();
+        locked = true;
+      }
+    }
+
+    private void discard() {
+      byGroup.clear();
+      reconcile = false;
+      if (locked) {
+        locked = false;
+        commits.readLock().unlock();
+      }
+    }
+  }
+}
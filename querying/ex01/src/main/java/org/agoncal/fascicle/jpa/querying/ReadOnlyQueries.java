@@ -0,0 +1,50 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.Query;
+
+/**
+ * Turns a query into a read-only one. The entities it returns are not managed
+ * by the entity manager: no copy of them is made when they are read, and they
+ * are not compared to that copy when the entity manager flushes. Changing them
+ * is never written to the database.
+ * <p>
+ * Read-only entities are built for the query only, so the caller can keep and
+ * change them freely. Queries can instead ask for the entities of the shared
+ * cache, returned without being copied and therefore never to be modified.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ReadOnlyQueries {
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  /**
+   * @return the query, returning entities built from the database rows and
+   * not cached
+   */
+  public static <Q extends Query> Q readOnly(Q query) {
+    return readOnly(query, false);
+  }
+
+  /**
+   * @param shared whether to return the entities of the shared cache, or
+   *               entities built from the database rows and not cached
+   * @return the query
+   */
+  public static <Q extends Query> Q readOnly(Q query, boolean shared) {
+    query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+    if (!shared) {
+      query.setHint(QueryHints.CACHE_USAGE, CacheUsage.DoNotCheckCache);
+      query.setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE);
+    }
+    return query;
+  }
+}
@@ -0,0 +1,176 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class CustomerShardsTest {
+
+  // ======================================
+  // =             Attributes             =
+  // ======================================
+
+  private static CustomerShards shards;
+  private static Customer[] customers;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  static void initShards() {
+    shards = new CustomerShards("cdbookstorePU", "jdbc:h2:mem:cdbookstoreShard0", "jdbc:h2:mem:cdbookstoreShard1", "jdbc:h2:mem:cdbookstoreShard2");
+
+    Country australia = new Country("AU");
+    customers = new Customer[]{
+      customer("Anthony", "Balla", "tballa@mail.com", 14, "Paris", new Country("FR")),
+      customer("Vincent", "Johnson", "vj@mail.com", 45, "London", new Country("UK")),
+      customer("Sebastian", "Twenty", "seb@yamail.com", 58, "Lisbon", new Country("PT")),
+      customer("Frederic", "Riou", "fred@carmail.com", 41, "Sao Paulo", new Country("BR")),
+      customer("Vincent", "Dubosc", "vd@yahoo.com", 14, "Perth", australia),
+      customer("David", "Chene", "dch@yahoo.com", 89, "Sydney", australia),
+      customer("Mike", "Pertus", "pertus@mike.com", 39, "San Sebastian", new Country("ES"))
+    };
+    shards.persist(customers);
+  }
+
+  @AfterAll
+  static void closeShards() {
+    shards.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldPlaceCustomersByCountryAndFindThemById() throws Exception {
+    Set<Integer> used = new HashSet<>();
+    for (Customer customer : customers) {
+      int shard = shards.shardOf(customer.getAddress().getCountry().getCode());
+      assertEquals(shard, shards.shardOf(customer.getId()));
+      assertEquals(customer.getEmail(), shards.find(customer.getId()).getEmail());
+      used.add(shard);
+    }
+    assertEquals(3, used.size());
+  }
+
+  @Test
+  public void shouldMergeACustomerIntoItsShard() throws Exception {
+    Customer customer = shards.find(customers[6].getId());
+    customer.setEmail("mike@pertus.com");
+    shards.merge(customer);
+
+    assertEquals("mike@pertus.com", shards.find(customers[6].getId()).getEmail());
+    assertEquals(1, shards.createQuery("SELECT c FROM Customer c WHERE c.email LIKE '%pertus%'", Customer.class).getResultList().size());
+  }
+
+  @Test
+  public void shouldQueryAllShards() throws Exception {
+    assertEquals(7, shards.createQuery("SELECT c FROM Customer c", Customer.class).getResultList().size());
+    assertEquals(2, shards.createQuery("SELECT c FROM Customer c WHERE c.firstName = :fname", Customer.class).setParameter("fname", "Vincent").getResultList().size());
+    assertEquals(1, shards.createQuery("SELECT c FROM Customer c WHERE c.firstName = ?1 AND c.address.country.code = ?2", Customer.class).setParameter(1, "Vincent").setParameter(2, "AU").getResultList().size());
+    assertEquals(6, shards.createQuery("SELECT DISTINCT c.firstName FROM Customer c", String.class).getResultList().size());
+  }
+
+  @Test
+  public void shouldMergeTheOrderOfAllShards() throws Exception {
+    List<Customer> older = shards.createQuery("SELECT c FROM Customer c WHERE c.age > 18 ORDER BY c.age DESC", Customer.class).getResultList();
+    assertEquals(Arrays.asList(89, 58, 45, 41, 39), older.stream().map(Customer::getAge).collect(Collectors.toList()));
+
+    List<Customer> page = shards.createQuery("SELECT c FROM Customer c WHERE c.age > 18 ORDER BY c.age DESC", Customer.class).setFirstResult(1).setMaxResults(2).getResultList();
+    assertEquals(Arrays.asList(58, 45), page.stream().map(Customer::getAge).collect(Collectors.toList()));
+
+    List<Customer> byCountry = shards.createQuery("SELECT c FROM Customer c ORDER BY c.address.country.code, c.lastName DESC", Customer.class).getResultList();
+    assertEquals(Arrays.asList("Dubosc", "Chene", "Riou", "Pertus", "Balla", "Twenty", "Johnson"), byCountry.stream().map(Customer::getLastName).collect(Collectors.toList()));
+
+    List<String> names = shards.createQuery("SELECT c.lastName FROM Customer c ORDER BY c.lastName", String.class).getResultList();
+    assertEquals(Stream.of(customers).map(Customer::getLastName).sorted().collect(Collectors.toList()), names);
+  }
+
+  @Test
+  public void shouldCombineAggregatesOfAllShards() throws Exception {
+    assertEquals(Long.valueOf(7), shards.createQuery("SELECT COUNT(c) FROM Customer c", Long.class).getSingleResult());
+    assertEquals(Integer.valueOf(89), shards.createQuery("SELECT MAX(c.age) FROM Customer c", Integer.class).getSingleResult());
+    assertEquals(Integer.valueOf(14), shards.createQuery("SELECT MIN(c.age) FROM Customer c", Integer.class).getSingleResult());
+
+    List<Object[]> perCountry = shards.createQuery("SELECT c.address.country.code, COUNT(c) FROM Customer c GROUP BY c.address.country.code ORDER BY c.address.country.code", Object[].class).getResultList();
+    assertEquals(6, perCountry.size());
+    assertArrayEquals(new Object[]{"AU", 2L}, perCountry.get(0));
+
+    assertThrows(IllegalArgumentException.class, () -> shards.createQuery("SELECT AVG(c.age) FROM Customer c", Double.class).getResultList());
+  }
+
+  @Test
+  public void shouldPageOverGroupsSpanningShards() throws Exception {
+    String jpql = "SELECT c.firstName, COUNT(c), MIN(c.age) FROM Customer c GROUP BY c.firstName";
+    Map<Object, List<Object>> all = new HashMap<>();
+    for (Object[] group : shards.createQuery(jpql, Object[].class).getResultList())
+      all.put(group[0], Arrays.asList(group));
+    // The two Vincents live in the United Kingdom and in Australia
+    assertEquals(Arrays.asList("Vincent", 2L, 14), all.get("Vincent"));
+
+    Map<Object, List<Object>> paged = new HashMap<>();
+    for (int first = 0; first < all.size(); first++) {
+      List<Object[]> page = shards.createQuery(jpql, Object[].class).setFirstResult(first).setMaxResults(1).getResultList();
+      assertEquals(1, page.size());
+      paged.put(page.get(0)[0], Arrays.asList(page.get(0)));
+    }
+    assertEquals(all, paged);
+
+    List<Object[]> ordered = shards.createQuery(jpql + " ORDER BY c.firstName DESC", Object[].class).setMaxResults(1).getResultList();
+    assertArrayEquals(new Object[]{"Vincent", 2L, 14}, ordered.get(0));
+  }
+
+  @Test
+  public void shouldOrderByTheCombinedAggregates() throws Exception {
+    List<Object[]> byCount = shards.createQuery("SELECT c.firstName, COUNT(c) FROM Customer c GROUP BY c.firstName ORDER BY COUNT(c) DESC, c.firstName", Object[].class).getResultList();
+    assertArrayEquals(new Object[]{"Vincent", 2L}, byCount.get(0));
+    assertArrayEquals(new Object[]{"Anthony", 1L}, byCount.get(1));
+
+    List<Object[]> byVariable = shards.createQuery("SELECT c.firstName, MIN(c.age) AS youngest FROM Customer c GROUP BY c.firstName ORDER BY youngest DESC, c.firstName", Object[].class).getResultList();
+    assertArrayEquals(new Object[]{"David", 89}, byVariable.get(0));
+    assertArrayEquals(new Object[]{"Vincent", 14}, byVariable.get(byVariable.size() - 1));
+
+    List<Object[]> page = shards.createQuery("SELECT c.firstName, COUNT(c) FROM Customer c GROUP BY c.firstName ORDER BY COUNT(c) DESC, c.firstName", Object[].class).setMaxResults(1).getResultList();
+    assertArrayEquals(new Object[]{"Vincent", 2L}, page.get(0));
+  }
+
+  @Test
+  public void shouldRejectHavingAsGroupsAreOnlyCompleteOnceMerged() throws Exception {
+    // Each Vincent has a group of one in his shard, but the merged group has two
+    assertThrows(IllegalArgumentException.class, () -> shards.createQuery("SELECT c.firstName, COUNT(c) FROM Customer c GROUP BY c.firstName HAVING COUNT(c) > 1", Object[].class).getResultList());
+  }
+
+  @Test
+  public void shouldRejectCountDistinct() throws Exception {
+    // Vincent would be counted once per shard
+    assertThrows(IllegalArgumentException.class, () -> shards.createQuery("SELECT COUNT(DISTINCT c.firstName) FROM Customer c", Long.class).getResultList());
+  }
+
+  private static Customer customer(String firstName, String lastName, String email, Integer age, String city, Country country) {
+    Customer customer = new Customer(firstName, lastName, email, age);
+    Address address = new Address("Street", city, "75015");
+    address.setCountry(country);
+    customer.setAddress(address);
+    return customer;
+  }
+}
@@ -0,0 +1,206 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class MaintainedAggregateTest extends AbstractPersistentTest {
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldFollowCommittedCustomers() throws Exception {
+    try (MaintainedAggregate<String> customers = MaintainedAggregate.count(emf, Customer.class, "address.country.code");
+         MaintainedAggregate<String> ages = MaintainedAggregate.sum(emf, Customer.class, "address.country.code", "age")) {
+      assertEquals(0, customers.get("FR"));
+
+      Customer anthony = customer("Anthony", 14, "FR");
+      Customer vincent = customer("Vincent", 45, "FR");
+      tx.begin();
+      em.persist(anthony);
+      em.persist(vincent);
+      tx.commit();
+      assertEquals(2, customers.get("FR"));
+      assertEquals(59, ages.get("FR"));
+
+      tx.begin();
+      anthony.setAge(15);
+      Address london = new Address("Ritherdon Rd", "London", "8QE");
+      london.setCountry(new Country("UK"));
+      vincent.setAddress(london);
+      tx.commit();
+      assertEquals(1, customers.get("FR"));
+      assertEquals(1, customers.get("UK"));
+      assertEquals(15, ages.get("FR"));
+      assertEquals(45, ages.get("UK"));
+
+      tx.begin();
+      em.remove(anthony);
+      em.flush();
+      tx.rollback();
+      assertEquals(1, customers.get("FR"));
+
+      tx.begin();
+      em.remove(em.merge(anthony));
+      em.remove(em.merge(vincent));
+      tx.commit();
+      assertEquals(0, customers.get("FR"));
+      assertEquals(0, customers.get("UK"));
+      assertEquals(0, ages.get("UK"));
+    }
+  }
+
+  @Test
+  public void shouldFollowUpdatesOfCustomersLeftOutOfTheCache() throws Exception {
+    try (MaintainedAggregate<String> customers = MaintainedAggregate.count(emf, Customer.class, "address.country.code");
+         MaintainedAggregate<String> ages = MaintainedAggregate.sum(emf, Customer.class, "address.country.code", "age")) {
+      Customer david = customer("David", 89, "AU");
+      tx.begin();
+      em.persist(david);
+      tx.commit();
+
+      tx.begin();
+      // Evicting only invalidates the cached customer, removing it is what a collected soft reference does
+      JpaHelper.getServerSession(emf).getIdentityMapAccessor().removeFromIdentityMap(david);
+      Address rio = new Address("Jardins", "Sao Paulo", "345678");
+      rio.setCountry(new Country("BR"));
+      david.setAddress(rio);
+      david.setAge(90);
+      tx.commit();
+      assertEquals(0, customers.get("AU"));
+      assertEquals(1, customers.get("BR"));
+      assertEquals(0, ages.get("AU"));
+      assertEquals(90, ages.get("BR"));
+
+      tx.begin();
+      em.remove(david);
+      tx.commit();
+      assertEquals(0, customers.get("BR"));
+    }
+  }
+
+  @Test
+  public void shouldReconcileWhileATransactionIsFlushed() throws Exception {
+    try (MaintainedAggregate<String> customers = MaintainedAggregate.count(emf, Customer.class, "address.country.code")) {
+      Customer sebastian = customer("Sebastian", 58, "NL");
+      tx.begin();
+      em.persist(sebastian);
+      em.flush();
+
+      // Neither another thread nor the flushing one wait for the commit
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      executor.submit(customers::reconcile).get(5, TimeUnit.SECONDS);
+      executor.shutdown();
+      customers.reconcile();
+      assertEquals(0, customers.get("NL"));
+
+      tx.commit();
+      assertEquals(1, customers.get("NL"));
+      customers.reconcile();
+      assertEquals(1, customers.get("NL"));
+
+      tx.begin();
+      em.remove(sebastian);
+      tx.commit();
+      assertEquals(0, customers.get("NL"));
+    }
+  }
+
+  @Test
+  public void shouldReconcileBulkChanges() throws Exception {
+    tx.begin();
+    em.persist(customer("Sebastian", 58, "PT"));
+    em.persist(customer("Frederic", 41, "PT"));
+    tx.commit();
+
+    try (MaintainedAggregate<String> customers = MaintainedAggregate.count(emf, Customer.class, "address.country.code")) {
+      assertEquals(2, customers.get("PT"));
+
+      tx.begin();
+      em.createQuery("DELETE FROM Customer c WHERE c.firstName = 'Frederic'").executeUpdate();
+      tx.commit();
+      assertEquals(2, customers.get("PT"));
+
+      customers.reconcile();
+      assertEquals(1, customers.get("PT"));
+    }
+    em.clear();
+    tx.begin();
+    em.createQuery("DELETE FROM Customer c WHERE c.firstName = 'Sebastian'").executeUpdate();
+    tx.commit();
+  }
+
+  @Test
+  public void shouldStayConsistentUnderConcurrentInsertsAndDeletes() throws Exception {
+    String[] codes = {"AU", "BR", "ES", "IT"};
+    try (MaintainedAggregate<String> customers = MaintainedAggregate.<String>count(emf, Customer.class, "address.country.code")
+      .reconcileEvery(Duration.ofMillis(5))) {
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      List<Future<?>> writers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        Random random = new Random(t);
+        writers.add(executor.submit(() -> {
+          EntityManager writer = emf.createEntityManager();
+          List<Customer> written = new ArrayList<>();
+          for (int i = 0; i < 50; i++) {
+            writer.getTransaction().begin();
+            if (!written.isEmpty() && random.nextInt(3) == 0)
+              writer.remove(written.remove(random.nextInt(written.size())));
+            else {
+              Customer customer = customer("Mike", 39, codes[random.nextInt(codes.length)]);
+              writer.persist(customer);
+              written.add(customer);
+            }
+            writer.getTransaction().commit();
+          }
+          writer.close();
+          return null;
+        }));
+      }
+      for (Future<?> writer : writers)
+        writer.get();
+      executor.shutdown();
+
+      Map<String, Long> expected = new HashMap<>();
+      for (Object[] row : em.createQuery("SELECT c.address.country.code, COUNT(c) FROM Customer c WHERE c.firstName = 'Mike' GROUP BY c.address.country.code", Object[].class).getResultList())
+        expected.put((String) row[0], (Long) row[1]);
+      for (String code : codes)
+        assertEquals(expected.getOrDefault(code, 0L).longValue(), customers.get(code), code);
+
+      customers.reconcile();
+      for (String code : codes)
+        assertEquals(expected.getOrDefault(code, 0L).longValue(), customers.get(code), code);
+    }
+    tx.begin();
+    em.createQuery("DELETE FROM Customer c WHERE c.firstName = 'Mike'").executeUpdate();
+    tx.commit();
+  }
+
+  private static Customer customer(String firstName, Integer age, String countryCode) {
+    Customer customer = new Customer(firstName, "Aggregated", firstName.toLowerCase() + "@mail.com", age);
+    Address address = new Address("Procession St", "Paris", "75015");
+    address.setCountry(new Country(countryCode));
+    customer.setAddress(address);
+    return customer;
+  }
+}
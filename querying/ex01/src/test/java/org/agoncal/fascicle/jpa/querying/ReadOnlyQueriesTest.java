@@ -0,0 +1,111 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+import static org.agoncal.fascicle.jpa.querying.ReadOnlyQueries.readOnly;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class ReadOnlyQueriesTest extends AbstractPersistentTest {
+
+  // ======================================
+  // =             Attributes             =
+  // ======================================
+
+  private static Customer customer01;
+  private static Customer customer02;
+
+  @BeforeAll
+  private static void initializeData() {
+    customer01 = new Customer("Anthony", "Balla", "tballa@mail.com", 14);
+    Address address01 = new Address("Procession St", "Paris", "75015");
+    address01.setCountry(new Country("FR"));
+    customer01.setAddress(address01);
+
+    customer02 = new Customer("Vincent", "Johnson", "vj@mail.com", 45);
+    Address address02 = new Address("Ritherdon Rd", "London", "8QE");
+    address02.setCountry(new Country("UK"));
+    customer02.setAddress(address02);
+
+    tx.begin();
+    em.persist(customer01);
+    em.persist(customer02);
+    tx.commit();
+  }
+
+  @AfterAll
+  private static void removeData() {
+    tx.begin();
+    em.remove(em.merge(customer01));
+    em.remove(em.merge(customer02));
+    tx.commit();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldShareEntitiesOfTheCache() throws Exception {
+    EntityManager other = emf.createEntityManager();
+    List<Customer> customers = readOnly(em.createQuery("SELECT c FROM Customer c ORDER BY c.id", Customer.class), true).getResultList();
+    List<Customer> others = readOnly(other.createQuery("SELECT c FROM Customer c ORDER BY c.id", Customer.class), true).getResultList();
+    other.close();
+
+    assertEquals(2, customers.size());
+    for (int i = 0; i < customers.size(); i++) {
+      assertFalse(em.contains(customers.get(i)));
+      assertSame(customers.get(i), others.get(i));
+    }
+  }
+
+  @Test
+  public void shouldNotShareEntitiesOfTheCacheByDefault() throws Exception {
+    Customer cached = em.find(Customer.class, customer01.getId());
+    Customer customer = readOnly(em.createQuery("SELECT c FROM Customer c WHERE c.id = :id", Customer.class)).setParameter("id", customer01.getId()).getSingleResult();
+    assertNotSame(cached, customer);
+    assertNotSame(customer, readOnly(em.createQuery("SELECT c FROM Customer c WHERE c.id = :id", Customer.class), true).setParameter("id", customer01.getId()).getSingleResult());
+
+    // Changing it leaves the cache and the other readers alone
+    customer.setEmail("anthony@balla.com");
+    EntityManager other = emf.createEntityManager();
+    assertEquals("tballa@mail.com", other.find(Customer.class, customer01.getId()).getEmail());
+    assertEquals("tballa@mail.com", readOnly(other.createQuery("SELECT c FROM Customer c WHERE c.id = :id", Customer.class), true).setParameter("id", customer01.getId()).getSingleResult().getEmail());
+    other.close();
+  }
+
+  @Test
+  public void shouldNotManageEntitiesOfReportQueries() throws Exception {
+    List<Address> addresses = readOnly(em.createQuery("SELECT c.address FROM Customer c", Address.class)).getResultList();
+
+    assertEquals(2, addresses.size());
+    addresses.forEach(address -> assertFalse(em.contains(address)));
+  }
+
+  @Test
+  public void shouldNeverWriteChangesToReadOnlyEntities() throws Exception {
+    Customer customer = readOnly(em.createQuery("SELECT c FROM Customer c WHERE c.firstName = 'Vincent'", Customer.class)).getSingleResult();
+    assertNotSame(customer, readOnly(em.createQuery("SELECT c FROM Customer c WHERE c.firstName = 'Vincent'", Customer.class)).getSingleResult());
+    assertFalse(em.contains(customer));
+
+    customer.setFirstName("Bill");
+    tx.begin();
+    em.flush();
+    tx.commit();
+
+    emf.getCache().evictAll();
+    assertEquals("Vincent", em.createQuery("SELECT c.firstName FROM Customer c WHERE c.id = :id", String.class).setParameter("id", customer.getId()).getSingleResult());
+  }
+}
@@ -0,0 +1,259 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.identitymaps.CacheIdentityMap;
+import org.eclipse.persistence.internal.identitymaps.CacheKey;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.QueryResultsCachePolicy;
+import org.eclipse.persistence.queries.ReadQuery;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.changesets.ObjectChangeSet;
+import org.eclipse.persistence.sessions.changesets.UnitOfWorkChangeSet;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the results of named queries, keyed by query name and parameter
+ * values, in the EclipseLink query results cache. Entity results are kept as
+ * references to the shared cache, and scalar results as rows. A committed
+ * transaction that changes an entity read by a query empties the results of
+ * that query.
+ * <p>
+ * Registered in <code>persistence.xml</code> as
+ * <code>eclipselink.session.customizer</code> and configured with the
+ * following persistence unit properties:
+ * <ul>
+ * <li><code>cdbookstore.query-cache</code>: comma separated names of the
+ * named queries to cache</li>
+ * <li><code>cdbookstore.query-cache.size</code>: results kept per query, one
+ * for each combination of parameter values (100)</li>
+ * </ul>
+ * Hits, misses and invalidations of each query are counted in the
+ * {@link Statistics} of the factory, leaving the profiler of the session to
+ * the application.
+ *
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class QueryResultCache implements SessionCustomizer {
+
+  public static final String QUERIES = "cdbookstore.query-cache";
+  public static final String SIZE = "cdbookstore.query-cache.size";
+
+  private static final String STATISTICS = QueryResultCache.class.getName();
+
+  // Cached queries being executed by the thread, the innermost first
+  private static final ThreadLocal<Deque<Execution>> EXECUTING = new ThreadLocal<>();
+
+  // ======================================
+  // =          Business methods          =
+  // ======================================
+
+  public static Statistics statistics(EntityManagerFactory emf) {
+    return (Statistics) JpaHelper.getServerSession(emf).getProperty(STATISTICS);
+  }
+
+  @Override
+  public void customize(Session session) {
+    Statistics statistics = new Statistics();
+    session.setProperty(STATISTICS, statistics);
+    Object queries = session.getProperty(QUERIES);
+    if (queries == null)
+      return;
+    Object size = session.getProperty(SIZE);
+    for (String name : queries.toString().split(","))
+      statistics.counters.put(name.trim(), new Counters());
+
+    session.getEventManager().addListener(new SessionEventAdapter() {
+
+      // Named queries are only all known once the session is logged in
+      @Override
+      public void postLogin(SessionEvent event) {
+        for (Map.Entry<String, Counters> entry : statistics.counters.entrySet())
+          for (DatabaseQuery query : queriesNamed(event.getSession(), entry.getKey()))
+            if (query.isReadQuery()) {
+              QueryResultsCachePolicy policy = new QueryResultsCachePolicy(size == null ? 100 : Integer.parseInt(size.toString()));
+              policy.setCacheType(CountingResults.class);
+              ((ReadQuery) query).setQueryResultsCachePolicy(policy);
+              entry.getValue().policy = policy;
+            }
+      }
+
+      @Override
+      public void preExecuteQuery(SessionEvent event) {
+        Counters counters = statistics.of(event.getQuery());
+        if (counters != null) {
+          counters.executions.increment();
+          Deque<Execution> executing = EXECUTING.get();
+          if (executing == null)
+            EXECUTING.set(executing = new ArrayDeque<>());
+          executing.push(new Execution(event.getQuery(), counters));
+        }
+      }
+
+      // Not raised when the query fails, the executions left by a failed
+      // query are then popped with the query it was nested in
+      @Override
+      public void postExecuteQuery(SessionEvent event) {
+        Deque<Execution> executing = EXECUTING.get();
+        if (executing == null || statistics.of(event.getQuery()) == null)
+          return;
+        while (!executing.isEmpty() && executing.pop().query != event.getQuery())
+          ;
+        if (executing.isEmpty())
+          EXECUTING.remove();
+      }
+
+      // Committed changes are merged into the shared cache, which is when
+      // EclipseLink empties the results of the queries reading them
+      @Override
+      public void postMergeUnitOfWorkChangeSet(SessionEvent event) {
+        UnitOfWorkChangeSet changes = (UnitOfWorkChangeSet) event.getProperty("UnitOfWorkChangeSet");
+        if (changes == null || changes.getAllChangeSets().isEmpty())
+          return;
+        Set<Class> changed = changedClasses(event.getSession(), changes);
+        for (Counters counters : statistics.counters.values())
+          if (counters.policy != null && counters.cached && !Collections.disjoint(changed, counters.policy.getInvalidationClasses())) {
+            counters.cached = false;
+            counters.invalidations.increment();
+          }
+      }
+    });
+  }
+
+  // ======================================
+  // =          Private methods           =
+  // ======================================
+
+  /**
+   * @return the counters of the innermost cached query executed by the
+   * thread, null if none is
+   */
+  static Counters executing() {
+    Deque<Execution> executing = EXECUTING.get();
+    return executing == null || executing.isEmpty() ? null : executing.peek().counters;
+  }
+
+  private static List<DatabaseQuery> queriesNamed(Session session, String name) {
+    List<DatabaseQuery> queries = session.getQueries().get(name);
+    return queries == null ? Collections.emptyList() : queries;
+  }
+
+  /**
+   * @return the changed classes and their superclasses, as EclipseLink
+   * invalidates the queries reading any of them
+   */
+  private static Set<Class> changedClasses(Session session, UnitOfWorkChangeSet changes) {
+    Set<Class> classes = new HashSet<>();
+    for (Object change : changes.getAllChangeSets().values())
+      for (Class type = ((ObjectChangeSet) change).getClassType(session); type != null; type = type.getSuperclass())
+        classes.add(type);
+    return classes;
+  }
+
+  // ======================================
+  // =           Inner classes            =
+  // ======================================
+
+  private static class Execution {
+    private final DatabaseQuery query;
+    private final Counters counters;
+
+    Execution(DatabaseQuery query, Counters counters) {
+      this.query = query;
+      this.counters = counters;
+    }
+  }
+
+  static class Counters {
+    private volatile QueryResultsCachePolicy policy;
+    private volatile boolean cached;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+  }
+
+  /**
+   * Results of a query, one entry per combination of parameter values.
+   * EclipseLink only puts the results it has just read from the database, so
+   * each put is a miss of the query being executed.
+   */
+  public static class CountingResults extends CacheIdentityMap {
+
+    public CountingResults(int size, ClassDescriptor descriptor, AbstractSession session, boolean isolated) {
+      super(size, descriptor, session, isolated);
+    }
+
+    @Override
+    public CacheKey put(Object parameters, Object results, Object writeLockValue, long readTime) {
+      Counters counters = executing();
+      if (counters != null) {
+        counters.misses.increment();
+        counters.cached = true;
+      }
+      return super.put(parameters, results, writeLockValue, readTime);
+    }
+  }
+
+  public static class Statistics {
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    private Counters of(DatabaseQuery query) {
+      return query == null || query.getName() == null ? null : counters.get(query.getName());
+    }
+
+    public long getHits(String query) {
+      Counters c = counters.get(query);
+      return c == null ? 0 : Math.max(0, c.executions.sum() - c.misses.sum());
+    }
+
+    /**
+     * @return the executions that read their results from the database
+     */
+    public long getMisses(String query) {
+      Counters c = counters.get(query);
+      return c == null ? 0 : c.misses.sum();
+    }
+
+    /**
+     * @return the times cached results were emptied by a commit changing an
+     * entity the query reads
+     */
+    public long getInvalidations(String query) {
+      Counters c = counters.get(query);
+      return c == null ? 0 : c.invalidations.sum();
+    }
+
+    /**
+     * @return hits divided by executions, 0 if the query was not run
+     */
+    public double getHitRatio(String query) {
+      long executions = getHits(query) + getMisses(query);
+      return executions == 0 ? 0 : (double) getHits(query) / executions;
+    }
+
+    public Map<String, Double> getHitRatios() {
+      Map<String, Double> ratios = new HashMap<>();
+      for (String query : counters.keySet())
+        ratios.put(query, getHitRatio(query));
+      return ratios;
+    }
+  }
+}
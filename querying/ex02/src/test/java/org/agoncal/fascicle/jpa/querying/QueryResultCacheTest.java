@@ -0,0 +1,181 @@
+package org.agoncal.fascicle.jpa.querying;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.tools.profiler.PerformanceProfiler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Antonio Goncalves
+ * http://www.antoniogoncalves.org
+ * --
+ */
+public class QueryResultCacheTest {
+
+  private static final List<Customer> customers = new ArrayList<>();
+
+  private static EntityManagerFactory emf;
+  private static EntityManager em;
+  private static EntityTransaction tx;
+  private static QueryResultCache.Statistics statistics;
+
+  // ======================================
+  // =          Lifecycle Methods         =
+  // ======================================
+
+  @BeforeAll
+  private static void initializeData() {
+    Map<String, Object> properties = new HashMap<>();
+    // A session and a database of their own, so that the counts do not depend on the other tests
+    properties.put("eclipselink.session-name", "queryResultCache");
+    properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:queryResultCacheDB");
+    properties.put("eclipselink.profiler", PerformanceProfiler.class.getName());
+    emf = Persistence.createEntityManagerFactory("cdbookstorePU", properties);
+    em = emf.createEntityManager();
+    tx = em.getTransaction();
+    statistics = QueryResultCache.statistics(emf);
+    tx.begin();
+    persist(new Customer("Vincent", "Johnson", "vj@mail.com", 45));
+    persist(new Customer("Vincent", "Dubosc", "vd@yahoo.com", 14));
+    persist(new Customer("Mike", "Pertus", "pertus@mike.com", 39));
+    tx.commit();
+  }
+
+  @AfterAll
+  private static void removeData() {
+    tx.begin();
+    customers.forEach(em::remove);
+    tx.commit();
+    em.close();
+    emf.close();
+  }
+
+  // ======================================
+  // =              Unit tests            =
+  // ======================================
+
+  @Test
+  public void shouldCacheResultsByParameter() throws Exception {
+    long misses = statistics.getMisses("findWithParam");
+    long hits = statistics.getHits("findWithParam");
+
+    assertEquals(2, findWithParam("Vincent"));
+    assertEquals(2, findWithParam("Vincent"));
+    assertEquals(1, findWithParam("Mike"));
+    assertEquals(1, findWithParam("Mike"));
+
+    assertEquals(misses + 2, statistics.getMisses("findWithParam"));
+    assertEquals(hits + 2, statistics.getHits("findWithParam"));
+  }
+
+  @Test
+  public void shouldNotLeaveTheQueryExecutingOnTheThread() throws Exception {
+    long misses = statistics.getMisses("findWithParam");
+    assertEquals(0, findWithParam("Nobody"));
+    assertNull(QueryResultCache.executing());
+    assertEquals(0, findWithParam("Nobody"));
+    assertNull(QueryResultCache.executing());
+    assertEquals(misses + 1, statistics.getMisses("findWithParam"));
+  }
+
+  @Test
+  public void shouldInvalidateResultsOnCommit() throws Exception {
+    assertEquals(2, findVincent());
+    long misses = statistics.getMisses("findVincent");
+    long invalidations = statistics.getInvalidations("findVincent");
+
+    tx.begin();
+    persist(new Customer("Vincent", "Guibert", "vg@mail.com", 33));
+    tx.commit();
+    assertEquals(invalidations + 1, statistics.getInvalidations("findVincent"));
+
+    assertEquals(3, findVincent());
+    assertEquals(misses + 1, statistics.getMisses("findVincent"));
+
+    tx.begin();
+    Customer removed = customers.remove(customers.size() - 1);
+    em.remove(removed);
+    tx.commit();
+    assertEquals(2, findVincent());
+  }
+
+  @Test
+  public void shouldHitTheCacheOnAMixedReadWriteWorkload() throws Exception {
+    long hits = statistics.getHits("findAll");
+    long misses = statistics.getMisses("findAll");
+
+    // Ten reads for each write
+    for (int i = 0; i < 50; i++) {
+      if (i % 10 == 0) {
+        tx.begin();
+        customers.get(0).setAge(20 + i);
+        tx.commit();
+      }
+      assertEquals(customers.size(), em.createNamedQuery("findAll", Customer.class).getResultList().size());
+    }
+
+    assertEquals(misses + 5, statistics.getMisses("findAll"));
+    assertEquals(hits + 45, statistics.getHits("findAll"));
+    assertTrue(statistics.getHitRatio("findAll") > 0.8);
+  }
+
+  @Test
+  public void shouldOnlyCountInvalidationsOfCachedResults() throws Exception {
+    assertEquals(customers.size(), em.createNamedQuery("findAll", Customer.class).getResultList().size());
+    long invalidations = statistics.getInvalidations("findAll");
+    long misses = statistics.getMisses("findAll");
+
+    // findAll does not read addresses
+    tx.begin();
+    Address address = new Address("Ritherdon Rd", "London", "8QE");
+    em.persist(address);
+    tx.commit();
+    assertEquals(invalidations, statistics.getInvalidations("findAll"));
+
+    // Two commits in a row empty the results once
+    for (int i = 0; i < 2; i++) {
+      tx.begin();
+      customers.get(0).setAge(60 + i);
+      tx.commit();
+    }
+    assertEquals(invalidations + 1, statistics.getInvalidations("findAll"));
+    assertEquals(customers.size(), em.createNamedQuery("findAll", Customer.class).getResultList().size());
+    assertEquals(misses + 1, statistics.getMisses("findAll"));
+
+    tx.begin();
+    em.remove(address);
+    tx.commit();
+  }
+
+  @Test
+  public void shouldKeepTheProfilerOfTheSession() throws Exception {
+    assertTrue(JpaHelper.getServerSession(emf).getProfiler() instanceof PerformanceProfiler);
+  }
+
+  private static void persist(Customer customer) {
+    em.persist(customer);
+    customers.add(customer);
+  }
+
+  private int findWithParam(String firstName) {
+    return em.createNamedQuery("findWithParam", Customer.class).setParameter("fname", firstName).getResultList().size();
+  }
+
+  private int findVincent() {
+    return em.createNamedQuery("findVincent", Customer.class).getResultList().size();
+  }
+}